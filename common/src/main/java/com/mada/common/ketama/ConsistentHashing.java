@@ -1,4 +1,4 @@
-package com.mada.zookeeper.utils.ketama;
+package com.mada.common.ketama;
 
 import java.util.TreeMap;
 
@@ -1,4 +1,4 @@
-package com.mada.zookeeper.utils.ketama;
+package com.mada.common.ketama;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -0,0 +1,145 @@
+package com.mada.common.redis;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带运行指标的jedis连接池
+ * <p>
+ * 1.记录借连接的等待耗时直方图，以及按命令类型统计的命令耗时直方图。
+ * 2.adaptive模式（-Dredis.pool.mode=adaptive）：
+ * 借连接时不再PING校验（省掉每条命令一次RTT），改为后台定时校验空闲连接；
+ * 并按最近一个周期的活跃连接峰值调整minIdle，突发流量时不必现建连接。
+ * <p>
+ * Created by madali on 2020/7/2 11:20
+ */
+@Log4j2
+public class InstrumentedJedisPool extends JedisPool {
+
+    public static final String MODE_PROPERTY = "redis.pool.mode";
+    public static final String MODE_ADAPTIVE = "adaptive";
+
+    // 后台校验空闲连接及调整minIdle的周期
+    private static final long IDLE_CHECK_INTERVAL = 30000L;// 单位：毫秒
+    private static final long RESIZE_INTERVAL = 10000L;// 单位：毫秒
+
+    private static final ScheduledExecutorService RESIZER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-pool-resizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> commandLatency = new ConcurrentHashMap<>();
+
+    private final int configuredMinIdle;
+    private final int configuredMaxIdle;
+    // 当前周期内的活跃连接峰值
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final ScheduledFuture<?> resizeTask;
+
+    public InstrumentedJedisPool(GenericObjectPoolConfig poolConfig, String host, int port, int timeout, String password) {
+        super(poolConfig, host, port, timeout, password);
+        this.configuredMinIdle = poolConfig.getMinIdle();
+        this.configuredMaxIdle = poolConfig.getMaxIdle();
+
+        this.resizeTask = isAdaptive() ? RESIZER.scheduleWithFixedDelay(this::resize, RESIZE_INTERVAL, RESIZE_INTERVAL, TimeUnit.MILLISECONDS) : null;
+    }
+
+    public static boolean isAdaptive() {
+        return MODE_ADAPTIVE.equalsIgnoreCase(System.getProperty(MODE_PROPERTY));
+    }
+
+    /**
+     * adaptive模式下改为后台校验空闲连接，其他配置不变
+     */
+    public static JedisPoolConfig applyMode(JedisPoolConfig jedisPoolConfig) {
+        if (isAdaptive()) {
+            jedisPoolConfig.setTestOnBorrow(false);
+            jedisPoolConfig.setTestWhileIdle(true);
+            jedisPoolConfig.setTimeBetweenEvictionRunsMillis(IDLE_CHECK_INTERVAL);
+            // 每次校验所有空闲连接
+            jedisPoolConfig.setNumTestsPerEvictionRun(-1);
+        }
+        return jedisPoolConfig;
+    }
+
+    @Override
+    public Jedis getResource() {
+        long start = System.nanoTime();
+        try {
+            return super.getResource();
+        } finally {
+            borrowWait.recordNanos(System.nanoTime() - start);
+            peakActive.accumulateAndGet(getNumActive(), Math::max);
+        }
+    }
+
+    /**
+     * 记录一条命令的耗时（含借还连接）
+     *
+     * @param command   命令类型：get、set、geoadd...
+     * @param startNano 开始时间：System.nanoTime()
+     */
+    public void recordCommand(String command, long startNano) {
+        commandLatency.computeIfAbsent(command, k -> new LatencyHistogram()).recordNanos(System.nanoTime() - startNano);
+    }
+
+    /**
+     * 运行指标快照：活跃/空闲/等待连接数，借连接等待耗时，各命令耗时
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("numActive", getNumActive());
+        metrics.put("numIdle", getNumIdle());
+        metrics.put("numWaiters", getNumWaiters());
+        metrics.put("minIdle", isClosed() ? -1 : internalPool.getMinIdle());
+        metrics.put("borrowWait", borrowWait.snapshot());
+
+        Map<String, Object> commands = new LinkedHashMap<>();
+        commandLatency.forEach((command, histogram) -> commands.put(command, histogram.snapshot()));
+        metrics.put("commands", commands);
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        if (resizeTask != null) {
+            resizeTask.cancel(false);
+        }
+        super.close();
+    }
+
+    /**
+     * minIdle跟随上一周期的活跃连接峰值，限制在配置的minIdle~maxIdle之间
+     */
+    private void resize() {
+        if (isClosed()) {
+            return;
+        }
+
+        try {
+            int peak = peakActive.getAndSet(getNumActive());
+            int minIdle = Math.max(configuredMinIdle, Math.min(configuredMaxIdle, peak));
+            if (minIdle != internalPool.getMinIdle()) {
+                internalPool.setMinIdle(minIdle);
+                log.info("redis连接池minIdle调整为:{},上一周期活跃连接峰值:{}", minIdle, peak);
+            }
+        } catch (Exception e) {
+            log.error("redis连接池调整minIdle异常.cause:{}", e.getMessage());
+        }
+    }
+
+}
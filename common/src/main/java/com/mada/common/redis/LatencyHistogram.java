@@ -0,0 +1,92 @@
+package com.mada.common.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的耗时直方图
+ * <p>
+ * 桶按2的幂划分（单位：微秒）：[0,1) [1,2) [2,4) ... [2^30,∞)，每个桶一个LongAdder，记录时只做一次自增，适合在每条redis命令上调用。
+ * 分位数取所在桶的上界，误差在2倍以内，用于观察趋势足够。
+ * <p>
+ * Created by madali on 2020/7/2 11:20
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0L);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        int index = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[index].increment();
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMicros() {
+        long c = count.sum();
+        return c == 0 ? 0D : (double) totalMicros.sum() / c;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 分位数所在桶的上界（微秒）
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile / 100D);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= threshold) {
+                return i == BUCKET_COUNT - 1 ? maxMicros.get() : 1L << i;
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * 常用指标快照：count、mean、p50、p99、max（单位：微秒）
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", getCount());
+        snapshot.put("meanMicros", getMeanMicros());
+        snapshot.put("p50Micros", getPercentileMicros(50));
+        snapshot.put("p99Micros", getPercentileMicros(99));
+        snapshot.put("maxMicros", getMaxMicros());
+        return snapshot;
+    }
+
+}
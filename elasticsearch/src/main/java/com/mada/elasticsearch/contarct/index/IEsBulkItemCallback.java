@@ -0,0 +1,15 @@
+package com.mada.elasticsearch.contarct.index;
+
+/**
+ * Created by madali on 2020/8/3 10:12
+ */
+//批量写入中单条请求的结果回调，在es的响应线程中执行，不能阻塞
+public interface IEsBulkItemCallback {
+
+    /**
+     * @param id             文档id
+     * @param success        是否成功（重试后的最终结果）
+     * @param failureMessage 失败原因，成功时为null
+     */
+    void onResponse(String id, boolean success, String failureMessage);
+}
@@ -0,0 +1,62 @@
+package com.mada.elasticsearch.contarct.index;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自动刷新的批量写入：请求先放入缓冲，按条数、字节数或时间间隔合并成bulk请求发送
+ * <p>
+ * 1.没有500条的限制，适合大批量导入、重建索引；同时在途的bulk请求数可配置，达到上限时add阻塞（背压）。
+ * 2.因es繁忙被拒绝（429/503）或整个bulk请求失败的条目按退避时间重试，最终结果通过回调通知。
+ * 3.add只保证放入缓冲，写入结果以回调为准；用完需调用close，否则缓冲中的请求可能丢失。
+ * <p>
+ * Created by madali on 2020/8/3 10:05
+ */
+public interface IEsBulkProcessor extends AutoCloseable {
+
+    /**
+     * 写入完整文档，文档已存在时覆盖
+     *
+     * @param indexName 索引名称
+     * @param id        文档id
+     * @param jsonData  文档json串
+     * @param callback  结果回调，可以为null
+     */
+    void index(String indexName, String id, String jsonData, IEsBulkItemCallback callback);
+
+    /**
+     * 与createIndex(String indexName, String id, String jsonData)一样：文档存在时更新jsonData中的字段，不存在时新增
+     *
+     * @param indexName 索引名称
+     * @param id        文档id
+     * @param jsonData  要更新的json串
+     * @param callback  结果回调，可以为null
+     */
+    void update(String indexName, String id, String jsonData, IEsBulkItemCallback callback);
+
+    /**
+     * 删除文档，文档不存在时也视为成功
+     *
+     * @param indexName 索引名称
+     * @param id        文档id
+     * @param callback  结果回调，可以为null
+     */
+    void delete(String indexName, String id, IEsBulkItemCallback callback);
+
+    /**
+     * 立即发送缓冲中的请求，不等待结果
+     */
+    void flush();
+
+    /**
+     * 发送缓冲中的请求并等待所有请求（包括重试）完成，之后不能再add
+     *
+     * @return timeout内全部完成时返回true，未完成的请求以失败回调
+     */
+    boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 等待最长60秒关闭
+     */
+    @Override
+    void close();
+}
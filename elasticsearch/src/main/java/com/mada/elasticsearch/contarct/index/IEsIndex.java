@@ -39,6 +39,7 @@ public interface IEsIndex {
     /**
      * 批量添加索引记录，bulkRequest里面和createIndex(String indexName, String id, String jsonData) 一样，使用的是prepareUpdate，即不区分是添加还是修改，均可使用此接口。
      * 1.map为空，map大小超过500，接口均抛异常信息提示。
+     * 2.超过500条的批量写入使用IEsBulkProcessor，自动分批、并发发送并重试。
      *
      * @param indexName 索引名称
      * @param map       key为索引id，value为记录json，map大小不能超过500
@@ -67,6 +68,7 @@ public interface IEsIndex {
      * <p>
      * 1.token为空，idList为空，idList大小超过500，接口均抛异常信息提示。
      * 2.以下两种情况下的key仍为id，value为true。删除一个不存在的index(es内部状态码50000)，重复删除已经删除的数据。
+     * 3.超过500条的批量删除使用IEsBulkProcessor。
      *
      * @param indexName 索引名称
      * @param idList    记录idList
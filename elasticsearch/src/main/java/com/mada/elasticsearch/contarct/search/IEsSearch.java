@@ -3,6 +3,7 @@ package com.mada.elasticsearch.contarct.search;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * Created by madali on 2019/1/16 18:18
@@ -30,6 +31,18 @@ public interface IEsSearch {
      */
     List<String> getInOneFieldData(String indexName, String fieldName, Set<Object> set);
 
+    /**
+     * 同getInOneFieldData，按scroll分页遍历全部结果，适合大量数据导出
+     * <p>
+     * 返回的Stream需要关闭（try-with-resources），遍历完或关闭时清除scroll上下文
+     *
+     * @param indexName 索引名称
+     * @param fieldName 字段名称
+     * @param set       属性值set
+     * @return 文档原始数据（String类型的json串）
+     */
+    Stream<String> streamInOneFieldData(String indexName, String fieldName, Set<Object> set);
+
     /**
      * in 多个字段查询
      *
@@ -39,6 +52,15 @@ public interface IEsSearch {
      */
     List<String> getInMultiFieldData(String indexName, Map<String, Set<Object>> map);
 
+    /**
+     * 同getInMultiFieldData，以Stream返回全部结果，用法见streamInOneFieldData
+     *
+     * @param indexName 索引名称
+     * @param map       map的key为字段名称，value为字段名称in的集合
+     * @return 文档原始数据（String类型的json串）
+     */
+    Stream<String> streamInMultiFieldData(String indexName, Map<String, Set<Object>> map);
+
     /**
      * not in 某个字段查询
      *
@@ -49,6 +71,16 @@ public interface IEsSearch {
      */
     List<String> getNotInOneFieldData(String indexName, String fieldName, Set<Object> set);
 
+    /**
+     * 同getNotInOneFieldData，以Stream返回全部结果，用法见streamInOneFieldData
+     *
+     * @param indexName 索引名称
+     * @param fieldName 字段名称
+     * @param set       属性值set
+     * @return 文档原始数据（String类型的json串）
+     */
+    Stream<String> streamNotInOneFieldData(String indexName, String fieldName, Set<Object> set);
+
     /**
      * not in 多个字段查询
      *
@@ -58,6 +90,15 @@ public interface IEsSearch {
      */
     List<String> getNotInMultiFieldData(String indexName, Map<String, Set<Object>> map);
 
+    /**
+     * 同getNotInMultiFieldData，以Stream返回全部结果，用法见streamInOneFieldData
+     *
+     * @param indexName 索引名称
+     * @param map       map的key为字段名称，value为字段名称not in的集合
+     * @return 文档原始数据（String类型的json串）
+     */
+    Stream<String> streamNotInMultiFieldData(String indexName, Map<String, Set<Object>> map);
+
     /**
      * 多字段排序
      *
@@ -67,6 +108,15 @@ public interface IEsSearch {
      */
     List<String> getOrderData(String indexName, Map<String, Boolean> fieldMap);
 
+    /**
+     * 同getOrderData，以Stream返回全部结果，用法见streamInOneFieldData
+     *
+     * @param indexName 索引名称
+     * @param fieldMap  字段fieldMap：key为字段名称，value为true时表示升序，false时表示降序
+     * @return 文档原始数据（String类型的json串）
+     */
+    Stream<String> streamOrderData(String indexName, Map<String, Boolean> fieldMap);
+
     /**
      * 获取索引分片，副本数，创建时间等信息
      * <p>
@@ -0,0 +1,54 @@
+package com.mada.elasticsearch.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量写入的参数，见IEsBulkProcessor
+ * <p>
+ * Created by madali on 2020/8/3 10:20
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+@Builder
+public class EsBulkConfigEntity {
+
+    /**
+     * 缓冲的请求数达到该值时发送，-1不限制
+     */
+    @Builder.Default
+    private int bulkActions = 1000;
+
+    /**
+     * 缓冲的请求大小达到该值时发送，单位：MB，-1不限制
+     */
+    @Builder.Default
+    private int bulkSizeMb = 5;
+
+    /**
+     * 距上次发送超过该时间时发送，单位：毫秒，-1不按时间发送
+     */
+    @Builder.Default
+    private long flushIntervalMillis = 1000L;
+
+    /**
+     * 同时在途的bulk请求数，0为在add的线程中同步发送
+     */
+    @Builder.Default
+    private int concurrentRequests = 2;
+
+    /**
+     * 单条请求的最大重试次数
+     */
+    @Builder.Default
+    private int maxRetries = 5;
+
+    /**
+     * 第一次重试的等待时间，之后指数增长，单位：毫秒
+     */
+    @Builder.Default
+    private long retryDelayMillis = 50L;
+}
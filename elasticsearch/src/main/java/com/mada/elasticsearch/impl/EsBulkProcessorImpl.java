@@ -0,0 +1,263 @@
+package com.mada.elasticsearch.impl;
+
+import com.mada.elasticsearch.client.EsClient;
+import com.mada.elasticsearch.contarct.index.IEsBulkItemCallback;
+import com.mada.elasticsearch.contarct.index.IEsBulkProcessor;
+import com.mada.elasticsearch.entity.EsBulkConfigEntity;
+import lombok.extern.log4j.Log4j2;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于es BulkProcessor的批量写入
+ * <p>
+ * 1.按条数、字节数、时间间隔自动发送，同时在途的bulk请求数由concurrentRequests控制。
+ * 2.es自带的退避重试针对整个bulk，这里关闭它，改为按条目重试：被拒绝（429/503）的条目和整个失败的bulk中的条目，
+ * 按各自的指数退避时间重新放入缓冲，与新请求一起发送；超过maxRetries或其他错误（如mapping冲突）直接以失败回调。
+ * 3.每个请求在完成（成功或最终失败）前记录在pending中，awaitClose据此等待重试全部结束。
+ * <p>
+ * Created by madali on 2020/8/3 10:40
+ */
+@Log4j2
+public class EsBulkProcessorImpl implements IEsBulkProcessor {
+
+    private static final long CLOSE_TIMEOUT = 60000L;   // 单位：毫秒
+    private static final long CLOSE_POLL_INTERVAL = 10L;    // 单位：毫秒
+    private static final AtomicInteger PROCESSOR_INDEX = new AtomicInteger();
+
+    private final BulkProcessor bulkProcessor;
+    private final BackoffPolicy backoffPolicy;
+    private final ScheduledExecutorService retryScheduler;
+
+    // 未完成的请求 -> 回调及重试状态，按对象identity区分
+    private final Map<ActionRequest<?>, Pending> pending = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private volatile boolean closed;
+
+    public EsBulkProcessorImpl() {
+        this(EsBulkConfigEntity.builder().build());
+    }
+
+    public EsBulkProcessorImpl(EsBulkConfigEntity config) {
+        this(EsClient.getInstance().getEsClient(), config);
+    }
+
+    public EsBulkProcessorImpl(Client client, EsBulkConfigEntity config) {
+        String name = "es-bulk-" + PROCESSOR_INDEX.incrementAndGet();
+        this.backoffPolicy = BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(config.getRetryDelayMillis()), config.getMaxRetries());
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.bulkProcessor = BulkProcessor.builder(client, new Listener())
+                .setName(name)
+                .setBulkActions(config.getBulkActions())
+                .setBulkSize(config.getBulkSizeMb() < 0 ? new ByteSizeValue(-1) : new ByteSizeValue(config.getBulkSizeMb(), ByteSizeUnit.MB))
+                .setFlushInterval(config.getFlushIntervalMillis() < 0 ? null : TimeValue.timeValueMillis(config.getFlushIntervalMillis()))
+                .setConcurrentRequests(config.getConcurrentRequests())
+                // 按条目重试，见类注释
+                .setBackoffPolicy(BackoffPolicy.noBackoff())
+                .build();
+    }
+
+    @Override
+    public void index(String indexName, String id, String jsonData, IEsBulkItemCallback callback) {
+        // type的名称和index一样
+        add(new IndexRequest(indexName, indexName, id).source(jsonData), id, callback);
+    }
+
+    @Override
+    public void update(String indexName, String id, String jsonData, IEsBulkItemCallback callback) {
+        add(new UpdateRequest(indexName, indexName, id).doc(jsonData).upsert(jsonData), id, callback);
+    }
+
+    @Override
+    public void delete(String indexName, String id, IEsBulkItemCallback callback) {
+        add(new DeleteRequest(indexName, indexName, id), id, callback);
+    }
+
+    private void add(ActionRequest<?> request, String id, IEsBulkItemCallback callback) {
+        if (closed) {
+            throw new IllegalStateException("bulk processor已关闭.");
+        }
+
+        pending.put(request, new Pending(id, callback, backoffPolicy.iterator()));
+        try {
+            bulkProcessor.add(request);
+        } catch (RuntimeException e) {
+            pending.remove(request);
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() {
+        bulkProcessor.flush();
+    }
+
+    @Override
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        closed = true;
+
+        // 等待重试结束：重试的请求会重新放入缓冲，需反复flush
+        while (!pending.isEmpty() && System.nanoTime() < deadline) {
+            bulkProcessor.flush();
+            Thread.sleep(CLOSE_POLL_INTERVAL);
+        }
+        retryScheduler.shutdownNow();
+        boolean completed = bulkProcessor.awaitClose(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+        List<Map.Entry<ActionRequest<?>, Pending>> unfinished;
+        synchronized (pending) {
+            unfinished = new ArrayList<>(pending.entrySet());
+            pending.clear();
+        }
+        for (Map.Entry<ActionRequest<?>, Pending> entry : unfinished) {
+            entry.getValue().complete(false, "bulk processor关闭时未完成.");
+        }
+        if (!unfinished.isEmpty()) {
+            log.warn("es批量写入关闭超时,未完成的请求数:{}", unfinished.size());
+        }
+
+        return completed && unfinished.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        try {
+            awaitClose(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 按退避时间重新放入缓冲；已达最大重试次数时返回false
+     */
+    private boolean retry(ActionRequest<?> request, Pending item) {
+        // 关闭过程中仍然重试（awaitClose会等待），等待超时后不再重试
+        if (retryScheduler.isShutdown() || !item.backoff.hasNext()) {
+            return false;
+        }
+
+        TimeValue delay = item.backoff.next();
+        try {
+            retryScheduler.schedule(() -> {
+                try {
+                    bulkProcessor.add(request);
+                } catch (Throwable t) {
+                    if (Objects.nonNull(pending.remove(request))) {
+                        item.complete(false, "重试失败:" + t.getMessage());
+                    }
+                }
+            }, delay.millis(), TimeUnit.MILLISECONDS);
+        } catch (Throwable t) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isRetryable(BulkItemResponse.Failure failure) {
+        RestStatus status = failure.getStatus();
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private final class Listener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            log.debug("发送es批量请求,executionId:{},请求数:{}", executionId, request.numberOfActions());
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            int retried = 0;
+            for (BulkItemResponse itemResponse : response.getItems()) {
+                ActionRequest<?> itemRequest = request.requests().get(itemResponse.getItemId());
+                Pending item = pending.get(itemRequest);
+                if (Objects.isNull(item)) {
+                    continue;
+                }
+
+                if (!itemResponse.isFailed()) {
+                    pending.remove(itemRequest);
+                    item.complete(true, null);
+                } else if (isRetryable(itemResponse.getFailure()) && retry(itemRequest, item)) {
+                    retried++;
+                } else {
+                    pending.remove(itemRequest);
+                    item.complete(false, itemResponse.getFailureMessage());
+                }
+            }
+
+            if (response.hasFailures()) {
+                log.warn("es批量请求部分失败,executionId:{},请求数:{},重试数:{},耗时:{}ms",
+                        executionId, request.numberOfActions(), retried, response.getTookInMillis());
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            log.error("es批量请求失败,executionId:{},请求数:{}", executionId, request.numberOfActions(), failure);
+            for (ActionRequest<?> itemRequest : request.requests()) {
+                Pending item = pending.get(itemRequest);
+                if (Objects.nonNull(item) && !retry(itemRequest, item)) {
+                    pending.remove(itemRequest);
+                    item.complete(false, failure.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final String id;
+        private final IEsBulkItemCallback callback;
+        // 本条请求剩余的重试等待时间
+        private final Iterator<TimeValue> backoff;
+
+        Pending(String id, IEsBulkItemCallback callback, Iterator<TimeValue> backoff) {
+            this.id = id;
+            this.callback = callback;
+            this.backoff = backoff;
+        }
+
+        void complete(boolean success, String failureMessage) {
+            if (Objects.isNull(callback)) {
+                return;
+            }
+            try {
+                callback.onResponse(id, success, failureMessage);
+            } catch (Throwable t) {
+                log.error("es批量写入回调异常,id:{}", id, t);
+            }
+        }
+    }
+
+}
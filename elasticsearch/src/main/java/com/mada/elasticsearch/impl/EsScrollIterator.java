@@ -0,0 +1,143 @@
+package com.mada.elasticsearch.impl;
+
+import lombok.extern.log4j.Log4j2;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 按scroll分页遍历查询结果，没有10000条的限制，内存中最多保留两页
+ * <p>
+ * 1.取到一页后立即异步请求下一页，调用方处理当前页的同时下一页在传输。
+ * 2.取完（或已取到totalHits条）后立即清除scroll上下文；未取完就不再使用时需调用close，否则上下文保留到keepAlive过期。
+ * <p>
+ * Created by madali on 2020/8/5 10:20
+ */
+@Log4j2
+final class EsScrollIterator implements Iterator<String>, AutoCloseable {
+
+    static final int PAGE_SIZE = 1000;
+    static final long KEEP_ALIVE = 60000L;   // 单位：毫秒
+
+    private final Client client;
+    private final TimeValue keepAlive;
+
+    private SearchHit[] page;
+    private int position;
+    private long fetched;
+    private long totalHits;
+    private String scrollId;
+    // 已发出但还未取用的下一页请求
+    private ListenableActionFuture<SearchResponse> next;
+    private boolean closed;
+
+    /**
+     * @param client  es客户端
+     * @param request 设置好查询条件、排序的请求，size即每页条数
+     */
+    EsScrollIterator(Client client, SearchRequestBuilder request) {
+        this.client = client;
+        this.keepAlive = TimeValue.timeValueMillis(KEEP_ALIVE);
+        accept(request.setScroll(keepAlive).execute().actionGet());
+    }
+
+    /**
+     * 以Stream返回，Stream关闭时清除scroll上下文
+     */
+    static Stream<String> stream(Client client, SearchRequestBuilder request) {
+        EsScrollIterator iterator = new EsScrollIterator(client, request);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    private void accept(SearchResponse response) {
+        scrollId = response.getScrollId();
+        totalHits = response.getHits().getTotalHits();
+        page = response.getHits().getHits();
+        position = 0;
+        fetched += page.length;
+
+        if (page.length == 0 || fetched >= totalHits) {
+            // 当前页仍可继续读取
+            release();
+        } else {
+            next = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= page.length) {
+            if (Objects.isNull(next)) {
+                return false;
+            }
+
+            ListenableActionFuture<SearchResponse> future = next;
+            next = null;
+            try {
+                accept(future.actionGet());
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return page[position++].getSourceAsString();
+    }
+
+    /**
+     * 不再继续遍历，清除scroll上下文，可重复调用
+     */
+    @Override
+    public void close() {
+        page = new SearchHit[0];
+        release();
+    }
+
+    private void release() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // 等待在途的下一页，scroll id以最新的响应为准
+        if (Objects.nonNull(next)) {
+            try {
+                scrollId = next.actionGet().getScrollId();
+            } catch (Throwable t) {
+                log.warn("Wait for es scroll page error.", t);
+            }
+            next = null;
+        }
+
+        if (Objects.isNull(scrollId)) {
+            return;
+        }
+
+        try {
+            client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (Throwable t) {
+            log.warn("Clear es scroll error: {}", scrollId, t);
+        }
+    }
+}
@@ -8,23 +8,21 @@ import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by madali on 2019/1/16 19:11
@@ -43,132 +41,92 @@ public class EsSearchImpl implements IEsSearch {
 
     @Override
     public List<String> getInOneFieldData(String indexName, String fieldName, Set<Object> set) {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        return collect(streamInOneFieldData(indexName, fieldName, set));
+    }
 
+    @Override
+    public Stream<String> streamInOneFieldData(String indexName, String fieldName, Set<Object> set) {
         // must相当于and，mustNot相当于Not，should相当于or
         BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
         for (Object obj : set) {
             boolQuery.should(QueryBuilders.termQuery(fieldName, obj));
         }
 
-        SearchResponse response = EsClient.getInstance().getEsClient()
-                .prepareSearch(indexName, indexName)
-                // 初始搜索请求在查询中指定scroll参数，告诉es需要保持搜索的上下文环境多长时间（滚动时间）
-                .setScroll(new TimeValue(60000))
-                .setQuery(queryBuilder.must(boolQuery))
-                // 最多查询到的记录数
-                .setSize(10000)
-                .execute().actionGet();
-
-        SearchHit[] hits = response.getHits().getHits();
-        List<String> result = new ArrayList<>();
-        if (hits.length > 0) {
-            for (SearchHit hit : hits) {
-                result.add(hit.getSourceAsString());
-            }
-        }
-
-        return result;
+        return scroll(prepareSearch(indexName).setQuery(QueryBuilders.boolQuery().must(boolQuery)));
     }
 
     @Override
     public List<String> getInMultiFieldData(String indexName, Map<String, Set<Object>> map) {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        return collect(streamInMultiFieldData(indexName, map));
+    }
 
-        SearchRequestBuilder searchRequestBuilder = EsClient.getInstance().getEsClient()
-                .prepareSearch(indexName, indexName)
-                .setScroll(new TimeValue(60000));
+    @Override
+    public Stream<String> streamInMultiFieldData(String indexName, Map<String, Set<Object>> map) {
+        SearchRequestBuilder searchRequestBuilder = prepareSearch(indexName);
 
         if (CollectionUtil.isNotEmpty(map)) {
+            BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
             for (Map.Entry<String, Set<Object>> entry : map.entrySet()) {
                 BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
-                String fieldName = entry.getKey();
-                Set<Object> set = entry.getValue();
-                for (Object obj : set) {
-                    boolQuery.should(QueryBuilders.termQuery(fieldName, obj));
-                    searchRequestBuilder.setQuery(queryBuilder.must(boolQuery));
+                for (Object obj : entry.getValue()) {
+                    boolQuery.should(QueryBuilders.termQuery(entry.getKey(), obj));
                 }
+                queryBuilder.must(boolQuery);
             }
+            searchRequestBuilder.setQuery(queryBuilder);
         }
 
-        SearchResponse response = searchRequestBuilder.setSize(10000).execute().actionGet();
-        SearchHit[] hits = response.getHits().getHits();
-        List<String> result = new ArrayList<>();
-        if (hits.length > 0) {
-            for (SearchHit hit : hits) {
-                result.add(hit.getSourceAsString());
-            }
-        }
-
-        return result;
+        return scroll(searchRequestBuilder);
     }
 
     @Override
     public List<String> getNotInOneFieldData(String indexName, String fieldName, Set<Object> set) {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        return collect(streamNotInOneFieldData(indexName, fieldName, set));
+    }
 
+    @Override
+    public Stream<String> streamNotInOneFieldData(String indexName, String fieldName, Set<Object> set) {
         BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
         for (Object obj : set) {
             boolQuery.mustNot(QueryBuilders.termQuery(fieldName, obj));
         }
 
-        SearchResponse response = EsClient.getInstance().getEsClient()
-                .prepareSearch(indexName, indexName)
-                .setScroll(new TimeValue(60000))
-                .setQuery(queryBuilder.must(boolQuery))
-                .setSize(10000)
-                .execute().actionGet();
-
-        SearchHit[] hits = response.getHits().getHits();
-        List<String> result = new ArrayList<>();
-        if (hits.length > 0) {
-            for (SearchHit hit : hits) {
-                result.add(hit.getSourceAsString());
-            }
-        }
-
-        return result;
+        return scroll(prepareSearch(indexName).setQuery(QueryBuilders.boolQuery().must(boolQuery)));
     }
 
     @Override
     public List<String> getNotInMultiFieldData(String indexName, Map<String, Set<Object>> map) {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        return collect(streamNotInMultiFieldData(indexName, map));
+    }
 
-        SearchRequestBuilder searchRequestBuilder = EsClient.getInstance().getEsClient()
-                .prepareSearch(indexName, indexName)
-                .setScroll(new TimeValue(60000));
+    @Override
+    public Stream<String> streamNotInMultiFieldData(String indexName, Map<String, Set<Object>> map) {
+        SearchRequestBuilder searchRequestBuilder = prepareSearch(indexName);
 
         if (CollectionUtil.isNotEmpty(map)) {
+            BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
             for (Map.Entry<String, Set<Object>> entry : map.entrySet()) {
                 BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
-                String fieldName = entry.getKey();
-                Set<Object> set = entry.getValue();
-                for (Object obj : set) {
-                    boolQuery.mustNot(QueryBuilders.termQuery(fieldName, obj));
-                    searchRequestBuilder.setQuery(queryBuilder.must(boolQuery));
+                for (Object obj : entry.getValue()) {
+                    boolQuery.mustNot(QueryBuilders.termQuery(entry.getKey(), obj));
                 }
+                queryBuilder.must(boolQuery);
             }
+            searchRequestBuilder.setQuery(queryBuilder);
         }
 
-        SearchResponse response = searchRequestBuilder.setSize(10000).execute().actionGet();
-        SearchHit[] hits = response.getHits().getHits();
-        List<String> result = new ArrayList<>();
-        if (hits.length > 0) {
-            for (SearchHit hit : hits) {
-                result.add(hit.getSourceAsString());
-            }
-        }
-
-        return result;
+        return scroll(searchRequestBuilder);
     }
 
     @Override
     public List<String> getOrderData(String indexName, Map<String, Boolean> fieldMap) {
-        List<String> result = new ArrayList<>();
+        return collect(streamOrderData(indexName, fieldMap));
+    }
 
+    @Override
+    public Stream<String> streamOrderData(String indexName, Map<String, Boolean> fieldMap) {
         SearchRequestBuilder searchRequestBuilder = EsClient.getInstance().getEsClient()
-                .prepareSearch(indexName)
-                .setSize(10000); // 最多查询到的记录数默认为10，不指定的话则最多只查询出10条记录。
+                .prepareSearch(indexName);
 
         if (CollectionUtil.isNotEmpty(fieldMap)) {
             for (Map.Entry<String, Boolean> entry : fieldMap.entrySet()) {
@@ -183,15 +141,28 @@ public class EsSearchImpl implements IEsSearch {
             }
         }
 
-        SearchResponse response = searchRequestBuilder.execute().actionGet();
-        SearchHit[] hits = response.getHits().getHits();
-        if (hits.length > 0) {
-            for (SearchHit hit : hits) {
-                result.add(hit.getSourceAsString());
-            }
-        }
+        return scroll(searchRequestBuilder);
+    }
 
-        return result;
+    private static SearchRequestBuilder prepareSearch(String indexName) {
+        return EsClient.getInstance().getEsClient()
+                .prepareSearch(indexName)
+                // 不需要排序时按_doc顺序遍历，scroll开销最小
+                .addSort(SortBuilders.fieldSort("_doc"));
+    }
+
+    /**
+     * 按scroll分页遍历，每页PAGE_SIZE条，取完或Stream关闭时清除scroll上下文
+     */
+    private static Stream<String> scroll(SearchRequestBuilder searchRequestBuilder) {
+        searchRequestBuilder.setSize(EsScrollIterator.PAGE_SIZE);
+        return EsScrollIterator.stream(EsClient.getInstance().getEsClient(), searchRequestBuilder);
+    }
+
+    private static List<String> collect(Stream<String> stream) {
+        try (Stream<String> hits = stream) {
+            return hits.collect(Collectors.toList());
+        }
     }
 
     @Override
@@ -0,0 +1,59 @@
+package com.mada.elasticsearch;
+
+import com.alibaba.fastjson.JSONObject;
+import com.mada.elasticsearch.contarct.index.IEsBulkProcessor;
+import com.mada.elasticsearch.entity.EsBulkConfigEntity;
+import com.mada.elasticsearch.impl.EsBulkProcessorImpl;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by madali on 2020/8/3 14:20
+ */
+public class IEsBulkProcessorTest extends BaseTest {
+
+    String indexName = "index0116-2";
+
+    // 批量写入10万条
+    @Test
+    public void t1() throws InterruptedException {
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger failure = new AtomicInteger();
+
+        IEsBulkProcessor bulkProcessor = new EsBulkProcessorImpl(EsBulkConfigEntity.builder().concurrentRequests(4).build());
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100000; i++) {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("price", 100 + i % 100);
+            jsonObject.put("age", 10 + i % 50);
+            jsonObject.put("id", i);
+            jsonObject.put("title", "朝阳 " + i);
+            jsonObject.put("time", 1000 + i);
+
+            bulkProcessor.update(indexName, String.valueOf(i), jsonObject.toString(), (id, result, failureMessage) -> {
+                if (result) {
+                    success.incrementAndGet();
+                } else {
+                    failure.incrementAndGet();
+                    System.out.println("写入失败:id" + id + "," + failureMessage);
+                }
+            });
+        }
+
+        boolean completed = bulkProcessor.awaitClose(1, TimeUnit.MINUTES);
+        System.out.println("写入完成:" + completed + ",成功:" + success + ",失败:" + failure + ",耗时:" + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // 批量删除
+    @Test
+    public void t2() {
+        try (IEsBulkProcessor bulkProcessor = new EsBulkProcessorImpl()) {
+            for (int i = 0; i < 100000; i++) {
+                bulkProcessor.delete(indexName, String.valueOf(i), null);
+            }
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import com.mada.elasticsearch.impl.EsSearchImpl;
 import org.junit.Test;
 
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * Created by madali on 2019/1/16 19:15
@@ -113,4 +114,15 @@ public class IEsSearchTest extends BaseTest {
         result.forEach(System.out::println);
     }
 
+    // 大量数据导出，按scroll分页遍历，不受10000条限制
+    @Test
+    public void t7() {
+        Map<String, Boolean> map = new HashMap<>();
+        map.put("price", false);
+
+        try (Stream<String> stream = esSearchService.streamOrderData(indexName, map)) {
+            System.out.println("count:" + stream.count());
+        }
+    }
+
 }
@@ -0,0 +1,152 @@
+package com.mada.mq.benchmark;
+
+import com.mada.mq.memory.p2p.InMemoryConsumerHandler;
+import com.mada.mq.memory.p2p.InMemoryProducerHandler;
+import com.mada.mq.memory.pubsub.InMemoryPublisherHandler;
+import com.mada.mq.memory.pubsub.InMemorySubscriberHandler;
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.redis.p2p.RedisAsyncProducerHandler;
+import com.mada.mq.redis.p2p.RedisBatchConsumerHandler;
+import com.mada.mq.redis.p2p.RedisConsumerHandler;
+import com.mada.mq.redis.pubsub.RedisPublisherHandler;
+import com.mada.mq.redis.pubsub.RedisSubscriberHandler;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.services.pubsub.IPublisherHandler;
+import com.mada.mq.services.pubsub.ISubscriberHandler;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * 基准测试共用的handler创建、消息构造和等待
+ * <p>
+ * transport为memory时使用进程内中转（不需要redis）；为redis时使用redis实现，需本地redis（127.0.0.1:6379）。
+ * <p>
+ * Created by madali on 2020/7/31 10:05
+ */
+@Log4j2
+final class BenchmarkSupport {
+
+    static final String MEMORY = "memory";
+    static final String REDIS = "redis";
+
+    private static final long AWAIT_TIMEOUT = 30000L;   // 单位：毫秒
+    private static final long SHUTDOWN_TIMEOUT = 5000L; // 单位：毫秒
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 每次试验一个新topic，避免上次残留的消息影响结果
+     */
+    static String newTopic(String name) {
+        return "benchmark:" + name + ":" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    static String payload(int size) {
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + i % 26);
+        }
+        return new String(chars);
+    }
+
+    static IProducerHandler producer(String transport, String topic) {
+        switch (transport) {
+            case MEMORY:
+                return new InMemoryProducerHandler(topic);
+            case REDIS:
+                return new RedisAsyncProducerHandler(topic);
+            default:
+                throw new IllegalArgumentException("未知的transport:" + transport);
+        }
+    }
+
+    /**
+     * 启动消费者，每个消费者一个线程
+     *
+     * @param batchSize 大于1时redis使用批量消费（一个拉取线程，consumers个工作线程）；进程内中转忽略该参数
+     * @param consumers 消费者（线程）数
+     */
+    static List<IConsumerHandler> startConsumers(String transport, String topic, int batchSize, int consumers, IRedisCallback callback) {
+        List<IConsumerHandler> handlers = new ArrayList<>();
+        if (REDIS.equals(transport) && batchSize > 1) {
+            handlers.add(new RedisBatchConsumerHandler(topic, batchSize, consumers, null));
+        } else {
+            for (int i = 0; i < consumers; i++) {
+                handlers.add(MEMORY.equals(transport) ? new InMemoryConsumerHandler(topic) : new RedisConsumerHandler(topic));
+            }
+        }
+
+        for (int i = 0; i < handlers.size(); i++) {
+            IConsumerHandler handler = handlers.get(i);
+            Thread thread = new Thread(() -> handler.consume(callback), topic + "-consumer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return handlers;
+    }
+
+    static IPublisherHandler publisher(String transport, String topic) {
+        return MEMORY.equals(transport) ? new InMemoryPublisherHandler(topic) : new RedisPublisherHandler(topic);
+    }
+
+    /**
+     * @param callbacks 第i个订阅者的回调
+     */
+    static List<ISubscriberHandler> startSubscribers(String transport, String topic, int subscribers, IntFunction<IRedisCallback> callbacks) {
+        List<ISubscriberHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < subscribers; i++) {
+            ISubscriberHandler handler = MEMORY.equals(transport) ? new InMemorySubscriberHandler(topic) : new RedisSubscriberHandler(topic);
+            handlers.add(handler);
+
+            IRedisCallback callback = callbacks.apply(i);
+            Thread thread = new Thread(() -> handler.subscribe(callback), topic + "-subscriber-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return handlers;
+    }
+
+    /**
+     * 等待counter达到target；超时说明消息丢失或消费者已停止，抛出异常结束本次测试
+     */
+    static void await(LongSupplier counter, long target) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_TIMEOUT);
+        while (counter.getAsLong() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("等待消息超时,已收到:" + counter.getAsLong() + ",期望:" + target);
+            }
+            Thread.yield();
+        }
+    }
+
+    static void shutdown(List<? extends IConsumerHandler> handlers) {
+        handlers.forEach(handler -> handler.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 删除redis中本次测试的key
+     */
+    static void cleanUp(String transport, String... keys) {
+        if (!REDIS.equals(transport)) {
+            return;
+        }
+
+        try (Jedis jedis = RedisUtil.connect()) {
+            jedis.del(keys);
+        } catch (Throwable t) {
+            log.error("Clean up redis keys error: {}", Arrays.toString(keys), t);
+        }
+    }
+
+}
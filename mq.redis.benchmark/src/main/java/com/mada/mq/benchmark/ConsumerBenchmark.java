@@ -0,0 +1,75 @@
+package com.mada.mq.benchmark;
+
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.services.p2p.IProducerHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消费吞吐：每次操作生产MESSAGES_PER_OP条消息并等待全部被消费，结果按消息计（ops/s即消息/秒）
+ * <p>
+ * 1.redis在batchSize为1时启动consumers个逐条BRPOP的消费者，大于1时启动一个批量消费者（consumers个工作线程）。
+ * 2.进程内中转启动consumers个竞争消费的消费者，batchSize不生效。
+ * <p>
+ * Created by madali on 2020/7/31 11:10
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumerBenchmark {
+
+    private static final int MESSAGES_PER_OP = 1000;
+
+    @Param({BenchmarkSupport.MEMORY})
+    public String transport;
+
+    @Param({"100", "1024"})
+    public int messageSize;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"1", "4"})
+    public int consumers;
+
+    private final AtomicLong consumed = new AtomicLong();
+    private long produced;
+
+    private String topic;
+    private String message;
+    private IProducerHandler producer;
+    private List<IConsumerHandler> consumerHandlers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        topic = BenchmarkSupport.newTopic("consume");
+        message = BenchmarkSupport.payload(messageSize);
+        producer = BenchmarkSupport.producer(transport, topic);
+        consumerHandlers = BenchmarkSupport.startConsumers(transport, topic, batchSize, consumers, (IRedisCallback) msg -> consumed.incrementAndGet());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(consumerHandlers);
+        producer.close();
+        BenchmarkSupport.cleanUp(transport, topic);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_OP)
+    public void produceAndConsume() {
+        for (int i = 0; i < MESSAGES_PER_OP; i++) {
+            producer.produce(message);
+        }
+        produced += MESSAGES_PER_OP;
+        BenchmarkSupport.await(consumed::get, produced);
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.mada.mq.benchmark;
+
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.redis.p2p.RedisAsyncProducerHandler;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.services.p2p.IProducerHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生产吞吐和耗时：每次操作发送pipelineDepth条消息
+ * <p>
+ * 1.redis使用异步批量生产（RedisAsyncProducerHandler），每次操作等待最后一条消息写入redis，pipelineDepth即每次等待前发出的消息数。
+ * 2.后台消费者持续取走消息，队列长度保持稳定。
+ * 3.produceBytes经过消息头编码，超过1KB的消息会压缩（进程内中转不编码）；redis与produceString一样异步批量LPUSH。
+ * <p>
+ * Created by madali on 2020/7/31 10:40
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerBenchmark {
+
+    @Param({BenchmarkSupport.MEMORY})
+    public String transport;
+
+    @Param({"100", "1024", "16384"})
+    public int messageSize;
+
+    @Param({"1", "100"})
+    public int pipelineDepth;
+
+    private String topic;
+    private String message;
+    private byte[] bytes;
+    private IProducerHandler producer;
+    private List<IConsumerHandler> consumers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        topic = BenchmarkSupport.newTopic("produce");
+        message = BenchmarkSupport.payload(messageSize);
+        bytes = message.getBytes(StandardCharsets.UTF_8);
+        producer = BenchmarkSupport.producer(transport, topic);
+        consumers = BenchmarkSupport.startConsumers(transport, topic, 100, 1, (IRedisCallback) msg -> {
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        producer.close();
+        BenchmarkSupport.shutdown(consumers);
+        BenchmarkSupport.cleanUp(transport, topic);
+    }
+
+    @Benchmark
+    public void produceString() {
+        if (producer instanceof RedisAsyncProducerHandler) {
+            RedisAsyncProducerHandler asyncProducer = (RedisAsyncProducerHandler) producer;
+            CompletableFuture<Boolean> last = null;
+            for (int i = 0; i < pipelineDepth; i++) {
+                last = asyncProducer.produceAsync(message);
+            }
+            // 发送线程按顺序完成，最后一条完成时之前的都已写入
+            last.join();
+            return;
+        }
+
+        for (int i = 0; i < pipelineDepth; i++) {
+            producer.produce(message);
+        }
+    }
+
+    @Benchmark
+    public void produceBytes() {
+        if (producer instanceof RedisAsyncProducerHandler) {
+            RedisAsyncProducerHandler asyncProducer = (RedisAsyncProducerHandler) producer;
+            CompletableFuture<Boolean> last = null;
+            for (int i = 0; i < pipelineDepth; i++) {
+                last = asyncProducer.produceAsync(bytes);
+            }
+            last.join();
+            return;
+        }
+
+        for (int i = 0; i < pipelineDepth; i++) {
+            producer.produce(bytes);
+        }
+    }
+
+}
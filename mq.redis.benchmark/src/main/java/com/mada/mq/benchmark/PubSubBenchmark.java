@@ -0,0 +1,101 @@
+package com.mada.mq.benchmark;
+
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.services.pubsub.IPublisherHandler;
+import com.mada.mq.services.pubsub.ISubscriberHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 发布/订阅：每次操作发布batchSize条消息并等待所有订阅者收到
+ * <p>
+ * batchSize为1时SampleTime即单条消息从发布到所有订阅者回调完成的延迟分布；ops/s乘以batchSize为每秒发布的消息数。
+ * <p>
+ * Created by madali on 2020/7/31 11:40
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PubSubBenchmark {
+
+    private static final long SUBSCRIBE_WAIT = 10L;  // 单位：毫秒
+    private static final long SETTLE_TIME = 200L;   // 单位：毫秒
+
+    @Param({BenchmarkSupport.MEMORY})
+    public String transport;
+
+    @Param({"100", "1024"})
+    public int messageSize;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"1", "4"})
+    public int subscribers;
+
+    // 每个订阅者收到的消息数
+    private AtomicLongArray received;
+    private long expected;
+
+    private String topic;
+    private String message;
+    private IPublisherHandler publisher;
+    private List<ISubscriberHandler> subscriberHandlers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        topic = BenchmarkSupport.newTopic("pubsub");
+        message = BenchmarkSupport.payload(messageSize);
+        publisher = BenchmarkSupport.publisher(transport, topic);
+        received = new AtomicLongArray(subscribers);
+        subscriberHandlers = BenchmarkSupport.startSubscribers(transport, topic, subscribers,
+                index -> (IRedisCallback) msg -> received.incrementAndGet(index));
+
+        // 订阅在各自线程中完成，发布探测消息直到每个订阅者都收到，之后开始计数
+        while (!allSubscribed()) {
+            publisher.publish("probe");
+            Thread.sleep(SUBSCRIBE_WAIT);
+        }
+        Thread.sleep(SETTLE_TIME);
+        expected = totalReceived();
+    }
+
+    private boolean allSubscribed() {
+        for (int i = 0; i < received.length(); i++) {
+            if (received.get(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long totalReceived() {
+        long total = 0;
+        for (int i = 0; i < received.length(); i++) {
+            total += received.get(i);
+        }
+        return total;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscriberHandlers.forEach(ISubscriberHandler::shutdown);
+        publisher.close();
+    }
+
+    @Benchmark
+    public void publishAndReceive() {
+        for (int i = 0; i < batchSize; i++) {
+            publisher.publish(message);
+        }
+        expected += (long) batchSize * subscribers;
+        BenchmarkSupport.await(this::totalReceived, expected);
+    }
+
+}
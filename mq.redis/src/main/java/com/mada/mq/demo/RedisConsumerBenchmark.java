@@ -0,0 +1,77 @@
+package com.mada.mq.demo;
+
+import com.mada.mq.memory.p2p.InMemoryConsumerHandler;
+import com.mada.mq.memory.p2p.InMemoryProducerHandler;
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.redis.p2p.RedisBatchConsumerHandler;
+import com.mada.mq.redis.p2p.RedisConsumerHandler;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.RedisUtil;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费吞吐对比：逐条BRPOP vs 批量取出+工作线程
+ * <p>
+ * 需本地redis，参数：消息数 每批数量 工作线程数；进程内队列的结果作为不经过网络的上限参考
+ * <p>
+ * Created by madali on 2020/7/16 16:32
+ */
+public class RedisConsumerBenchmark {
+
+    private static final String TOPIC = "BenchmarkTest";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int workerThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        InMemoryProducerHandler producerHandler = new InMemoryProducerHandler(TOPIC, messages);
+        for (int i = 0; i < messages; i++) {
+            producerHandler.produce((i % 64) + ":" + i);
+        }
+        run("memory", new InMemoryConsumerHandler(TOPIC), messages);
+
+        produce(messages);
+        run("brpop", new RedisConsumerHandler(TOPIC), messages);
+        produce(messages);
+        run("batch(" + batchSize + "," + workerThreads + ")",
+                new RedisBatchConsumerHandler(TOPIC, batchSize, workerThreads, message -> message.substring(0, message.indexOf(':'))), messages);
+
+        System.out.println(RedisUtil.getPoolMetrics());
+        System.exit(0);
+    }
+
+    private static void run(String name, IConsumerHandler consumerHandler, int messages) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(messages);
+        long start = System.nanoTime();
+        Thread consumer = new Thread(() -> consumerHandler.consume((IRedisCallback) message -> latch.countDown()), name);
+        consumer.setDaemon(true);
+        consumer.start();
+
+        boolean finished = latch.await(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        consumerHandler.shutdown();
+
+        long consumed = messages - latch.getCount();
+        System.out.printf("%s: consumed %d/%d in %d ms, %.0f msg/s%s%n", name, consumed, messages,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), consumed * 1_000_000_000D / elapsed, finished ? "" : " (timeout)");
+    }
+
+    private static void produce(int messages) {
+        try (Jedis jedis = RedisUtil.connect()) {
+            jedis.del(TOPIC);
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < messages; i++) {
+                pipeline.lpush(TOPIC, (i % 64) + ":" + i);
+                if (i % 1000 == 999) {
+                    pipeline.sync();
+                }
+            }
+            pipeline.sync();
+        }
+    }
+}
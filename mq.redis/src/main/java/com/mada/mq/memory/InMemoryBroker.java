@@ -0,0 +1,192 @@
+package com.mada.mq.memory;
+
+import com.mada.mq.redis.IRedisBytesCallback;
+import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.utils.MpmcRingBuffer;
+import com.mada.mq.utils.MpscRingBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内的消息中转：同一个JVM中的生产者和消费者不经过redis，消息不序列化、不走网络
+ * <p>
+ * 1.P2P：每个topic一个有界无锁队列（多生产者、多消费者），多个消费者竞争消费。
+ * 2.Pub/Sub：每个订阅者一个有界无锁队列（多发布者、单订阅线程），发布时放入当前所有订阅者的队列。
+ * 3.消息按引用传递（String或byte[]），byte[]消息生产后不能再修改。
+ * 4.P2P延时消息放入进程内的DelayQueue，到期后由搬运线程放入topic的队列（与redis的{topic}:delayed对应）。
+ * 5.进程退出时队列中的消息丢失，只用于同进程的组件之间、测试以及吞吐基准。
+ * <p>
+ * Created by madali on 2020/7/28 10:30
+ */
+public final class InMemoryBroker {
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int SPIN_TRIES = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+    // idle的连续等待次数上限：之后park时间已达到最大值，计数不再增加，长时间空闲也不会溢出
+    private static final int MAX_IDLE_COUNT = SPIN_TRIES + 10;
+    private static final long DELAY_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    // topic -> P2P队列
+    private static final Map<String, MpmcRingBuffer<Object>> QUEUES = new ConcurrentHashMap<>();
+    // topic -> 订阅者队列
+    private static final Map<String, Set<MpscRingBuffer<Object>>> SUBSCRIBERS = new ConcurrentHashMap<>();
+    // 改用进程内中转的topic，见MqUtil.Memory.bind
+    private static final Set<String> BOUND_TOPICS = ConcurrentHashMap.newKeySet();
+
+    private InMemoryBroker() {
+    }
+
+    /**
+     * topic的P2P队列，第一次使用时按capacity创建，之后capacity不再生效
+     */
+    public static MpmcRingBuffer<Object> queue(String topic, int capacity) {
+        return QUEUES.computeIfAbsent(topic, k -> new MpmcRingBuffer<>(capacity));
+    }
+
+    public static void subscribe(String topic, MpscRingBuffer<Object> queue) {
+        SUBSCRIBERS.computeIfAbsent(topic, k -> new CopyOnWriteArraySet<>()).add(queue);
+    }
+
+    public static void unsubscribe(String topic, MpscRingBuffer<Object> queue) {
+        SUBSCRIBERS.computeIfPresent(topic, (k, queues) -> {
+            queues.remove(queue);
+            return queues.isEmpty() ? null : queues;
+        });
+    }
+
+    /**
+     * @return 放入失败（订阅者队列已满）的订阅者数
+     */
+    public static int publish(String topic, Object message) {
+        Set<MpscRingBuffer<Object>> queues = SUBSCRIBERS.get(topic);
+        if (queues == null) {
+            return 0;
+        }
+
+        int dropped = 0;
+        for (MpscRingBuffer<Object> queue : queues) {
+            if (!queue.offer(message)) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    public static void bind(String topic) {
+        BOUND_TOPICS.add(topic);
+    }
+
+    public static void unbind(String topic) {
+        BOUND_TOPICS.remove(topic);
+    }
+
+    public static boolean isBound(String topic) {
+        return BOUND_TOPICS.contains(topic);
+    }
+
+    /**
+     * 延时消息：到期后放入topic的P2P队列；到期时队列已满则每隔1毫秒重试，不阻塞其他topic
+     */
+    public static void delay(String topic, Object message, long delay, TimeUnit unit) {
+        DelayMover.DELAYED.put(new DelayedMessage(topic, message, System.nanoTime() + unit.toNanos(Math.max(0L, delay))));
+    }
+
+    /**
+     * 按回调类型交给回调，必要时在String和byte[]（UTF-8）之间转换
+     */
+    public static void deliver(ICallback callback, Object message) {
+        if (callback instanceof IRedisBytesCallback) {
+            ((IRedisBytesCallback) callback).execute(message instanceof byte[]
+                    ? (byte[]) message : ((String) message).getBytes(StandardCharsets.UTF_8));
+        } else {
+            ((IRedisCallback) callback).execute(message instanceof String
+                    ? (String) message : new String((byte[]) message, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 队列为空或已满时的等待：先让出CPU，之后逐步延长park时间，最长MAX_PARK_NANOS
+     *
+     * @param idleCount 连续等待的次数，从0开始
+     * @return 下一次的idleCount，不超过MAX_IDLE_COUNT
+     */
+    public static int idle(int idleCount) {
+        if (idleCount < SPIN_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idleCount - SPIN_TRIES, 10)));
+        }
+        return Math.min(idleCount + 1, MAX_IDLE_COUNT);
+    }
+
+    /**
+     * 第一次使用延时消息时才启动搬运线程
+     */
+    private static final class DelayMover {
+
+        private static final DelayQueue<DelayedMessage> DELAYED = new DelayQueue<>();
+
+        static {
+            Thread mover = new Thread(DelayMover::run, "in-memory-delay-mover");
+            mover.setDaemon(true);
+            mover.start();
+        }
+
+        private static void run() {
+            while (true) {
+                DelayedMessage delayed;
+                try {
+                    delayed = DELAYED.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (!queue(delayed.topic, DEFAULT_CAPACITY).offer(delayed.message)) {
+                    DELAYED.put(new DelayedMessage(delayed.topic, delayed.message, System.nanoTime() + DELAY_RETRY_NANOS));
+                }
+            }
+        }
+    }
+
+    private static final class DelayedMessage implements Delayed {
+
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final String topic;
+        private final Object message;
+        private final long dueNanos;
+        // 到期时间相同的消息按放入顺序搬运
+        private final long sequence = SEQUENCE.getAndIncrement();
+
+        DelayedMessage(String topic, Object message, long dueNanos) {
+            this.topic = topic;
+            this.message = message;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            DelayedMessage that = (DelayedMessage) other;
+            int result = Long.compare(dueNanos - that.dueNanos, 0L);
+            return result != 0 ? result : Long.compare(sequence, that.sequence);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.mada.mq.memory.p2p;
+
+import com.mada.mq.memory.InMemoryBroker;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MpmcRingBuffer;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Objects;
+
+/**
+ * 进程内P2P消费者，在当前线程中从topic的内存队列取消息，直到shutdown，见InMemoryBroker
+ * <p>
+ * 同一个topic的多个消费者竞争消费；shutdown后队列中剩余的消息留给其他消费者。
+ * <p>
+ * Created by madali on 2020/7/28 11:20
+ */
+@Log4j2
+public class InMemoryConsumerHandler implements IConsumerHandler {
+
+    private final String TOPIC;
+    private final MpmcRingBuffer<Object> queue;
+
+    private volatile boolean running = true;
+
+    public InMemoryConsumerHandler(String topic) {
+        this(topic, InMemoryBroker.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 队列容量，只在topic的队列第一次创建时生效
+     */
+    public InMemoryConsumerHandler(String topic, int capacity) {
+        TOPIC = topic;
+        this.queue = InMemoryBroker.queue(topic, capacity);
+    }
+
+    @Override
+    public <T extends ICallback> void consume(final T callback) {
+        int idleCount = 0;
+        while (running) {
+            Object message = queue.poll();
+            if (Objects.isNull(message)) {
+                idleCount = InMemoryBroker.idle(idleCount);
+                continue;
+            }
+
+            idleCount = 0;
+            try {
+                InMemoryBroker.deliver(callback, message);
+            } catch (Throwable t) {
+                log.error("Consume in-memory message error (Topic = {}).", TOPIC, t);
+            }
+        }
+    }
+
+    /**
+     * 队列中等待消费的消息数（近似值）
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        log.info("Shut down the in-memory consumer (Topic = {}).", TOPIC);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mada.mq.memory.p2p;
+
+import com.mada.mq.memory.InMemoryBroker;
+import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.utils.MpmcRingBuffer;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内P2P生产者，消息放入topic的内存队列，见InMemoryBroker
+ * <p>
+ * 队列满时阻塞等待，最长MAX_BLOCK毫秒，超时后丢弃并计数。支持延时消息，与redis生产者一样可以按topic切换。
+ * <p>
+ * Created by madali on 2020/7/28 11:05
+ */
+@Log4j2
+public class InMemoryProducerHandler implements IProducerHandler {
+
+    private static final long MAX_BLOCK = 1000L;    // 单位：毫秒
+
+    private final String TOPIC;
+    private final MpmcRingBuffer<Object> queue;
+    private final LongAdder droppedCount = new LongAdder();
+
+    public InMemoryProducerHandler(String topic) {
+        this(topic, InMemoryBroker.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 队列容量，只在topic的队列第一次创建时生效
+     */
+    public InMemoryProducerHandler(String topic, int capacity) {
+        TOPIC = topic;
+        this.queue = InMemoryBroker.queue(topic, capacity);
+    }
+
+    @Override
+    public void produce(String message) {
+        offer(message);
+    }
+
+    /**
+     * 不复制数组，生产后不能再修改message
+     */
+    @Override
+    public void produce(byte[] message) {
+        offer(message);
+    }
+
+    /**
+     * 到期后放入队列，见InMemoryBroker.delay
+     */
+    @Override
+    public void produce(String message, long delay, TimeUnit unit) {
+        InMemoryBroker.delay(TOPIC, message, delay, unit);
+    }
+
+    private void offer(Object message) {
+        if (queue.offer(message)) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BLOCK);
+        int idleCount = 0;
+        while (System.nanoTime() < deadline) {
+            idleCount = InMemoryBroker.idle(idleCount);
+            if (queue.offer(message)) {
+                return;
+            }
+        }
+
+        droppedCount.increment();
+        log.error("Produce in-memory message error, queue is full (Topic = {}, Capacity = {}).", TOPIC, queue.capacity());
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 队列共享，关闭生产者不影响队列中的消息
+     */
+    @Override
+    public void close() {
+        log.info("Close the in-memory producer (Topic = {}).", TOPIC);
+    }
+}
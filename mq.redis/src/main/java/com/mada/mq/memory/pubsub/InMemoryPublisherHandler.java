@@ -0,0 +1,50 @@
+package com.mada.mq.memory.pubsub;
+
+import com.mada.mq.memory.InMemoryBroker;
+import com.mada.mq.services.pubsub.IPublisherHandler;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内发布者，消息放入当前所有订阅者的内存队列，见InMemoryBroker
+ * <p>
+ * 与redis pub/sub相同：没有订阅者时消息丢弃；订阅者队列满时不等待，只丢弃给该订阅者的消息并计数。
+ * <p>
+ * Created by madali on 2020/7/28 11:35
+ */
+@Log4j2
+public class InMemoryPublisherHandler implements IPublisherHandler {
+
+    private final String TOPIC;
+    private final LongAdder droppedCount = new LongAdder();
+
+    public InMemoryPublisherHandler(String topic) {
+        TOPIC = topic;
+    }
+
+    @Override
+    public void publish(String message) {
+        droppedCount.add(InMemoryBroker.publish(TOPIC, message));
+    }
+
+    /**
+     * 不复制数组，所有订阅者收到同一个数组，发布后不能再修改message
+     */
+    @Override
+    public void publish(byte[] message) {
+        droppedCount.add(InMemoryBroker.publish(TOPIC, message));
+    }
+
+    /**
+     * 因订阅者队列满而丢弃的消息数（按订阅者计）
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    @Override
+    public void close() {
+        log.info("Close the in-memory publisher (Topic = {}).", TOPIC);
+    }
+}
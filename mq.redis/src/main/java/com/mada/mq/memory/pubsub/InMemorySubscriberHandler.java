@@ -0,0 +1,67 @@
+package com.mada.mq.memory.pubsub;
+
+import com.mada.mq.memory.InMemoryBroker;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.pubsub.ISubscriberHandler;
+import com.mada.mq.utils.MpscRingBuffer;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Objects;
+
+/**
+ * 进程内订阅者，在当前线程中执行回调，直到shutdown，见InMemoryBroker
+ * <p>
+ * 调用subscribe后才收到消息；每个订阅者一个有界队列，队列满时发布者丢弃新消息。
+ * <p>
+ * Created by madali on 2020/7/28 11:48
+ */
+@Log4j2
+public class InMemorySubscriberHandler implements ISubscriberHandler {
+
+    private final String TOPIC;
+    private final MpscRingBuffer<Object> queue;
+
+    private volatile boolean running = true;
+
+    public InMemorySubscriberHandler(String topic) {
+        this(topic, InMemoryBroker.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 订阅者队列容量
+     */
+    public InMemorySubscriberHandler(String topic, int capacity) {
+        TOPIC = topic;
+        this.queue = new MpscRingBuffer<>(capacity);
+    }
+
+    @Override
+    public <T extends ICallback> void subscribe(final T callback) {
+        InMemoryBroker.subscribe(TOPIC, queue);
+        try {
+            int idleCount = 0;
+            while (running) {
+                Object message = queue.poll();
+                if (Objects.isNull(message)) {
+                    idleCount = InMemoryBroker.idle(idleCount);
+                    continue;
+                }
+
+                idleCount = 0;
+                try {
+                    InMemoryBroker.deliver(callback, message);
+                } catch (Throwable t) {
+                    log.error("Subscribe in-memory message error (Topic = {}).", TOPIC, t);
+                }
+            }
+        } finally {
+            InMemoryBroker.unsubscribe(TOPIC, queue);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        log.info("Shut down the in-memory subscriber (Topic = {}).", TOPIC);
+    }
+}
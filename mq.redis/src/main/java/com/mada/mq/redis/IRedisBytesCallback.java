@@ -0,0 +1,12 @@
+package com.mada.mq.redis;
+
+import com.mada.mq.services.ICallback;
+
+/**
+ * Created by madali on 2020/7/27 10:45
+ */
+//异步回调消费或订阅，消息为二进制（已按消息头解压）
+public interface IRedisBytesCallback extends ICallback {
+
+    void execute(byte[] message);
+}
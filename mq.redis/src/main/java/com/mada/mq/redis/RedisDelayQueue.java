@@ -0,0 +1,150 @@
+package com.mada.mq.redis;
+
+import com.mada.mq.redis.stream.RedisStreamProducerHandler;
+import com.mada.mq.utils.RedisScript;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延时消息：先放入按到期时间排序的ZSET（{topic}:delayed），到期后由搬运任务批量移入队列
+ * <p>
+ * 1.ZSET的member为"随机id|消息"，内容相同的延时消息不会互相覆盖；移入队列时去掉id。
+ * 2.所有topic共用一个搬运线程，每个周期每个topic执行一次lua脚本，一次最多搬运MOVE_BATCH条，
+ * 搬满一批时立刻继续，积压时每秒可搬运数万条；没有到期消息时只有一次ZRANGEBYSCORE的开销。
+ * 3.搬运任务随消费者启动（消费者在consume时注册topic），多个进程同时搬运由lua脚本保证不重复。
+ * 4.到期时间取生产者的本地时钟，与消费者的时钟偏差会使投递提前或推迟。
+ * 5.列表队列（包括分区列表{topic}:{partition}）到期后LPUSH；stream到期后XADD到字段data，不裁剪，由之后生产时的MAXLEN裁剪。
+ * <p>
+ * Created by madali on 2020/7/23 10:16
+ */
+@Log4j2
+public final class RedisDelayQueue {
+
+    private static final long MOVE_INTERVAL = 100L;    // 单位：毫秒
+    // 每次脚本最多搬运的消息数，不超过lua unpack的参数上限
+    private static final int MOVE_BATCH = 1000;
+
+    // KEYS[1]=延时ZSET，KEYS[2]=队列；ARGV[1]=当前时间（毫秒），ARGV[2]=数量。返回搬运的消息数
+    private static final RedisScript MOVE_SCRIPT = new RedisScript(
+            "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])); " +
+                    "if (#due == 0) then " +
+                    "return 0; " +
+                    "end; " +
+                    "local messages = {}; " +
+                    "for i, member in ipairs(due) do " +
+                    "local sep = string.find(member, '|', 1, true); " +
+                    "messages[i] = string.sub(member, sep + 1); " +
+                    "end; " +
+                    "redis.call('lpush', KEYS[2], unpack(messages)); " +
+                    "redis.call('zrem', KEYS[1], unpack(due)); " +
+                    "return #due;");
+
+    // KEYS[1]=延时ZSET，KEYS[2]=stream；ARGV同MOVE_SCRIPT。返回搬运的消息数
+    private static final RedisScript STREAM_MOVE_SCRIPT = new RedisScript(
+            "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])); " +
+                    "if (#due == 0) then " +
+                    "return 0; " +
+                    "end; " +
+                    "for i, member in ipairs(due) do " +
+                    "local sep = string.find(member, '|', 1, true); " +
+                    "redis.call('xadd', KEYS[2], '*', '" + RedisStreamProducerHandler.FIELD_DATA + "', string.sub(member, sep + 1)); " +
+                    "end; " +
+                    "redis.call('zrem', KEYS[1], unpack(due)); " +
+                    "return #due;");
+
+    private static final ScheduledExecutorService MOVER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-delay-mover");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 列表队列 -> 注册次数
+    private static final Map<String, Integer> TOPICS = new ConcurrentHashMap<>();
+    // stream -> 注册次数
+    private static final Map<String, Integer> STREAMS = new ConcurrentHashMap<>();
+
+    static {
+        MOVER.scheduleWithFixedDelay(RedisDelayQueue::moveAll, MOVE_INTERVAL, MOVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private RedisDelayQueue() {
+    }
+
+    public static String delayedKey(String topic) {
+        return topic + ":delayed";
+    }
+
+    /**
+     * 添加延时消息
+     *
+     * @param dueMillis 到期时间（毫秒时间戳）
+     */
+    public static void add(Jedis jedis, String topic, String message, long dueMillis) {
+        String member = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "|" + message;
+        jedis.zadd(delayedKey(topic), dueMillis, member);
+    }
+
+    /**
+     * 开始把该列表队列的到期消息LPUSH到队列，可重复注册，每次注册需对应一次注销
+     */
+    public static void register(String topic) {
+        TOPICS.merge(topic, 1, Integer::sum);
+    }
+
+    public static void unregister(String topic) {
+        TOPICS.computeIfPresent(topic, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * 开始把该stream的到期消息XADD到stream，可重复注册，每次注册需对应一次注销
+     */
+    public static void registerStream(String stream) {
+        STREAMS.merge(stream, 1, Integer::sum);
+    }
+
+    public static void unregisterStream(String stream) {
+        STREAMS.computeIfPresent(stream, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static void moveAll() {
+        if (TOPICS.isEmpty() && STREAMS.isEmpty()) {
+            return;
+        }
+
+        try (Jedis jedis = RedisUtil.connect()) {
+            moveAll(jedis, TOPICS, MOVE_SCRIPT);
+            moveAll(jedis, STREAMS, STREAM_MOVE_SCRIPT);
+        } catch (Throwable t) {
+            log.error("Move redis delayed messages error.", t);
+        }
+    }
+
+    private static void moveAll(Jedis jedis, Map<String, Integer> targets, RedisScript script) {
+        for (String topic : targets.keySet()) {
+            long moved;
+            do {
+                moved = move(jedis, topic, script);
+            } while (moved >= MOVE_BATCH && targets.containsKey(topic));
+        }
+    }
+
+    private static long move(Jedis jedis, String topic, RedisScript script) {
+        long start = System.nanoTime();
+        try {
+            return (Long) script.eval(jedis, Arrays.asList(delayedKey(topic), topic),
+                    Arrays.asList(String.valueOf(System.currentTimeMillis()), String.valueOf(MOVE_BATCH)));
+        } finally {
+            RedisUtil.recordCommand("delay-move", start);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.mada.mq.redis;
+
+import com.mada.mq.services.ICallback;
+import com.mada.mq.utils.DeflaterPool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * 二进制消息的编解码：2字节消息头 + 8字节入队时间 + 消息体
+ * <p>
+ * 1.消息头：第1字节为标记0xB7（不是合法的UTF-8首字节，字符串消息不会以它开头），第2字节高4位为消息体类型（0二进制，其余保留），
+ * 低3位为压缩方式（0未压缩，1deflate），第4位为1时消息头后跟8字节入队时间（毫秒时间戳），用于统计端到端延迟。
+ * 2.消息体超过阈值时deflate压缩，压缩后没有变小时按未压缩发送；Deflater/Inflater从对象池借用。
+ * 3.没有消息头的消息（produce(String)生产的）按原样交给回调，新旧消息可以在同一个队列中混用。
+ * <p>
+ * Created by madali on 2020/7/27 11:02
+ */
+public final class RedisMessageCodec {
+
+    // 默认压缩阈值：1KB以下的消息压缩收益很小
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final int HEADER_LENGTH = 2;
+    private static final int TIMESTAMP_LENGTH = 8;
+    private static final int FLAG_TIMESTAMP = 0x08;
+    private static final int COMPRESSION_MASK = 0x07;
+    private static final int CODEC_BYTES = 0;
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    private static final DeflaterPool DEFLATER_POOL = new DeflaterPool(Deflater.BEST_SPEED, Runtime.getRuntime().availableProcessors() * 2);
+
+    private RedisMessageCodec() {
+    }
+
+    public static byte[] encode(byte[] payload) {
+        return encode(payload, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold 压缩阈值，消息体超过该字节数时才压缩
+     */
+    public static byte[] encode(byte[] payload, int threshold) {
+        int prefix = HEADER_LENGTH + TIMESTAMP_LENGTH;
+        long enqueueMillis = System.currentTimeMillis();
+        if (payload.length > threshold) {
+            byte[] compressed = DEFLATER_POOL.compress(payload, 0, payload.length, prefix);
+            if (compressed != null) {
+                writeHeader(compressed, COMPRESSION_DEFLATE, enqueueMillis);
+                return compressed;
+            }
+        }
+
+        byte[] message = new byte[prefix + payload.length];
+        writeHeader(message, COMPRESSION_NONE, enqueueMillis);
+        System.arraycopy(payload, 0, message, prefix, payload.length);
+        return message;
+    }
+
+    /**
+     * @return 消息体（已解压）；没有消息头时原样返回
+     */
+    public static byte[] decode(byte[] message) {
+        if (message.length < HEADER_LENGTH || message[0] != MAGIC) {
+            return message;
+        }
+
+        int offset = (message[1] & FLAG_TIMESTAMP) != 0 ? HEADER_LENGTH + TIMESTAMP_LENGTH : HEADER_LENGTH;
+        int compression = message[1] & COMPRESSION_MASK;
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return Arrays.copyOfRange(message, offset, message.length);
+            case COMPRESSION_DEFLATE:
+                return DEFLATER_POOL.decompress(message, offset);
+            default:
+                throw new IllegalArgumentException("消息解码失败,未知的压缩方式:" + compression);
+        }
+    }
+
+    /**
+     * @return 消息的入队时间（毫秒时间戳）；没有消息头或没有入队时间时返回-1
+     */
+    public static long enqueueMillis(byte[] message) {
+        if (message.length < HEADER_LENGTH + TIMESTAMP_LENGTH || message[0] != MAGIC || (message[1] & FLAG_TIMESTAMP) == 0) {
+            return -1L;
+        }
+
+        long millis = 0L;
+        for (int i = HEADER_LENGTH; i < HEADER_LENGTH + TIMESTAMP_LENGTH; i++) {
+            millis = (millis << 8) | (message[i] & 0xFF);
+        }
+        return millis;
+    }
+
+    /**
+     * 按回调类型交给回调：IRedisBytesCallback收到二进制消息体，IRedisCallback收到UTF-8字符串
+     */
+    public static void deliver(ICallback callback, byte[] message) {
+        if (callback instanceof IRedisBytesCallback) {
+            ((IRedisBytesCallback) callback).execute(decode(message));
+        } else {
+            ((IRedisCallback) callback).execute(new String(decode(message), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeHeader(byte[] message, int compression, long enqueueMillis) {
+        message[0] = MAGIC;
+        message[1] = (byte) ((CODEC_BYTES << 4) | FLAG_TIMESTAMP | compression);
+        for (int i = HEADER_LENGTH + TIMESTAMP_LENGTH - 1; i >= HEADER_LENGTH; i--) {
+            message[i] = (byte) enqueueMillis;
+            enqueueMillis >>>= 8;
+        }
+    }
+
+}
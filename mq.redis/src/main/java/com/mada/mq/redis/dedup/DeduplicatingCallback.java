@@ -0,0 +1,44 @@
+package com.mada.mq.redis.dedup;
+
+import com.mada.mq.redis.IRedisCallback;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.function.Function;
+
+/**
+ * 去重回调：重复的消息不再交给业务回调，业务回调成功后才记录为已处理
+ * <p>
+ * 回调异常时不记录，消息重试时仍会执行；可包装任意消费者的IRedisCallback。
+ * <p>
+ * Created by madali on 2020/7/30 11:20
+ */
+@Log4j2
+public class DeduplicatingCallback implements IRedisCallback {
+
+    private final RedisDeduplicator deduplicator;
+    private final Function<String, String> idExtractor;
+    private final IRedisCallback callback;
+
+    /**
+     * @param deduplicator 去重过滤器
+     * @param idExtractor  从消息中提取唯一id（如业务流水号）
+     * @param callback     业务回调
+     */
+    public DeduplicatingCallback(RedisDeduplicator deduplicator, Function<String, String> idExtractor, IRedisCallback callback) {
+        this.deduplicator = deduplicator;
+        this.idExtractor = idExtractor;
+        this.callback = callback;
+    }
+
+    @Override
+    public void execute(String message) {
+        String id = idExtractor.apply(message);
+        if (deduplicator.isDuplicate(id)) {
+            log.debug("Skip duplicate redis message, id: {}", id);
+            return;
+        }
+
+        callback.execute(message);
+        deduplicator.markProcessed(id);
+    }
+}
@@ -0,0 +1,234 @@
+package com.mada.mq.redis.dedup;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消费端去重：本地按时间窗口轮换的布隆过滤器 + 只在过滤器命中时查询的redis SET
+ * <p>
+ * 1.按固定时间窗口（所有进程按时间戳对齐）保留当前和上一个窗口的布隆过滤器，过期窗口整体丢弃，内存不随运行时间增长。
+ * 2.过滤器未命中时一定是新消息，不访问redis；命中时（重复或误判）再查询窗口对应的SET（{topic}:dedup:{窗口序号}）确认。
+ * 3.处理成功的消息id批量SADD到当前窗口的SET，SET在两个窗口后过期；确认前先写入本地未提交的id。
+ * 4.过滤器只记录本进程处理过的消息，能拦截重试、放回队列后被本进程再次取到的消息；被其他消费者取到的重复消息不能保证拦截。
+ * 5.线程安全（guava 23起BloomFilter.put可并发调用），可在批量消费的多个工作线程中共用。
+ * <p>
+ * Created by madali on 2020/7/30 10:15
+ */
+@Log4j2
+public class RedisDeduplicator implements AutoCloseable {
+
+    public static final long DEFAULT_WINDOW = 600000L;  // 单位：毫秒
+    public static final int DEFAULT_EXPECTED_INSERTIONS = 1000000;
+    public static final double DEFAULT_FPP = 0.01D;
+
+    private static final int FLUSH_BATCH = 100;
+    private static final long FLUSH_INTERVAL = 200L;    // 单位：毫秒
+
+    private final String TOPIC;
+    private final long window;
+    private final int expectedInsertions;
+    private final double fpp;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    // 已处理、尚未写入redis的消息id
+    private final List<String> pendingIds = new ArrayList<>();
+    private long pendingWindow;
+    private long lastFlushTime = System.currentTimeMillis();
+
+    private final LongAdder filterHits = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    public RedisDeduplicator(String topic) {
+        this(topic, DEFAULT_WINDOW, DEFAULT_EXPECTED_INSERTIONS, DEFAULT_FPP);
+    }
+
+    /**
+     * @param topic              队列
+     * @param window             去重时间窗口，消息在1~2个窗口内可以被识别为重复，单位：毫秒
+     * @param expectedInsertions 每个窗口预计处理的消息数
+     * @param fpp                布隆过滤器误判率，误判只会多一次redis查询
+     */
+    public RedisDeduplicator(String topic, long window, int expectedInsertions, double fpp) {
+        TOPIC = topic;
+        this.window = window;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+
+        long index = System.currentTimeMillis() / window;
+        this.current = new Generation(index, newFilter());
+        this.previous = new Generation(index - 1, newFilter());
+    }
+
+    private BloomFilter<String> newFilter() {
+        return BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedInsertions, fpp);
+    }
+
+    private String dedupKey(long windowIndex) {
+        return TOPIC + ":dedup:" + windowIndex;
+    }
+
+    /**
+     * @return 最近1~2个窗口内已处理过该消息时返回true
+     */
+    public boolean isDuplicate(String id) {
+        rotateIfNeeded();
+        Generation currentGeneration = current;
+        Generation previousGeneration = previous;
+        if (!currentGeneration.filter.mightContain(id) && !previousGeneration.filter.mightContain(id)) {
+            return false;
+        }
+
+        filterHits.increment();
+        boolean duplicate;
+        synchronized (pendingIds) {
+            duplicate = pendingIds.contains(id);
+        }
+        if (!duplicate) {
+            duplicate = containsInRedis(id, currentGeneration.index, previousGeneration.index);
+        }
+        if (duplicate) {
+            duplicates.increment();
+        }
+        return duplicate;
+    }
+
+    private boolean containsInRedis(String id, long currentIndex, long previousIndex) {
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            Pipeline pipeline = jedis.pipelined();
+            Response<Boolean> inCurrent = pipeline.sismember(dedupKey(currentIndex), id);
+            Response<Boolean> inPrevious = pipeline.sismember(dedupKey(previousIndex), id);
+            pipeline.sync();
+            return inCurrent.get() || inPrevious.get();
+        } catch (Throwable t) {
+            // redis不可用时按新消息处理，宁可重复也不丢消息
+            log.error("Check redis dedup set error (Topic = {}).", TOPIC, t);
+            return false;
+        } finally {
+            RedisUtil.recordCommand("sismember", start);
+        }
+    }
+
+    /**
+     * 消息处理成功后调用
+     */
+    public void markProcessed(String id) {
+        rotateIfNeeded();
+        Generation generation = current;
+        generation.filter.put(id);
+
+        List<String> batch = null;
+        long batchWindow;
+        synchronized (pendingIds) {
+            if (!pendingIds.isEmpty() && pendingWindow != generation.index) {
+                batch = drainPending();
+            }
+            batchWindow = pendingWindow;
+            pendingWindow = generation.index;
+            pendingIds.add(id);
+            if (batch == null && (pendingIds.size() >= FLUSH_BATCH || System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL)) {
+                batch = drainPending();
+                batchWindow = generation.index;
+            }
+        }
+
+        if (batch != null) {
+            flush(batch, batchWindow);
+        }
+    }
+
+    /**
+     * 调用方持有pendingIds的锁
+     */
+    private List<String> drainPending() {
+        List<String> batch = new ArrayList<>(pendingIds);
+        pendingIds.clear();
+        lastFlushTime = System.currentTimeMillis();
+        return batch;
+    }
+
+    private void flush(List<String> ids, long windowIndex) {
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            String key = dedupKey(windowIndex);
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.sadd(key, ids.toArray(new String[0]));
+            pipeline.pexpire(key, window * 2);
+            pipeline.sync();
+        } catch (Throwable t) {
+            log.error("Flush redis dedup set error (Topic = {}), count: {}", TOPIC, ids.size(), t);
+        } finally {
+            RedisUtil.recordCommand("sadd", start);
+        }
+    }
+
+    private void rotateIfNeeded() {
+        long index = System.currentTimeMillis() / window;
+        if (index == current.index) {
+            return;
+        }
+
+        synchronized (this) {
+            if (index == current.index) {
+                return;
+            }
+            // 跳过多个窗口时上一个窗口的记录也已过期
+            previous = index == current.index + 1 ? current : new Generation(index - 1, newFilter());
+            current = new Generation(index, newFilter());
+            log.debug("Rotate dedup bloom filter (Topic = {}, Window = {}).", TOPIC, index);
+        }
+    }
+
+    /**
+     * 布隆过滤器命中（需查询redis）的次数
+     */
+    public long getFilterHitCount() {
+        return filterHits.sum();
+    }
+
+    /**
+     * 确认为重复的消息数
+     */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * 写入未提交的消息id
+     */
+    @Override
+    public void close() {
+        List<String> batch;
+        long batchWindow;
+        synchronized (pendingIds) {
+            if (pendingIds.isEmpty()) {
+                return;
+            }
+            batchWindow = pendingWindow;
+            batch = drainPending();
+        }
+        flush(batch, batchWindow);
+    }
+
+    private static final class Generation {
+        private final long index;
+        private final BloomFilter<String> filter;
+
+        Generation(long index, BloomFilter<String> filter) {
+            this.index = index;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.mada.mq.redis.p2p;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.utils.MpscRingBuffer;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步批量生产：消息先放入有界无锁环形队列，由一个发送线程批量LPUSH
+ * <p>
+ * 1.攒够batchSize条或第一条消息等待超过lingerMillis时发送，一批消息一次变参LPUSH，一次网络往返。
+ * 2.每条消息返回一个CompletableFuture：写入redis后完成为true，被丢弃时完成为false，发送失败或被拒绝时异常完成。
+ * 3.队列满时按OverflowPolicy处理：BLOCK阻塞等待（最长maxBlockMillis，超时后拒绝），DROP丢弃，FAIL立即拒绝。
+ * 4.每次发送从连接池借连接，多个线程可以同时调用produce。
+ * 5.字符串消息和二进制消息（带消息头，见RedisMessageCodec）可以混在同一批中发送。
+ * 6.延时消息不经过环形队列，直接ZADD到{topic}:delayed，见RedisDelayQueue。
+ * <p>
+ * Created by madali on 2020/7/21 11:02
+ */
+@Log4j2
+public class RedisAsyncProducerHandler implements IProducerHandler {
+
+    private static final int DEFAULT_CAPACITY = 65536;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final long DEFAULT_LINGER_MILLIS = 5L;
+    private static final long DEFAULT_MAX_BLOCK_MILLIS = 1000L;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+    private static final long CLOSE_TIMEOUT = 10000L;   // 单位：毫秒
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP, FAIL
+    }
+
+    private final String TOPIC;
+    private final byte[] topicBytes;
+    private final MpscRingBuffer<Pending> buffer;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final long maxBlockNanos;
+    private final Thread sender;
+    private final MqMetrics.TopicMetrics metrics;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    // 正在放入消息的线程数：close等它们放完后再清理队列，已通过running检查的消息不会在发送线程退出后滞留
+    private final AtomicInteger producing = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    public RedisAsyncProducerHandler(String topic) {
+        this(topic, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS, OverflowPolicy.BLOCK, DEFAULT_MAX_BLOCK_MILLIS);
+    }
+
+    /**
+     * @param topic          队列
+     * @param capacity       环形队列容量（取不小于该值的2的幂）
+     * @param batchSize      每批最多发送的消息数
+     * @param lingerMillis   第一条消息最多等待多久就发送，单位：毫秒
+     * @param overflowPolicy 队列满时的处理方式
+     * @param maxBlockMillis BLOCK时最长等待时间，单位：毫秒
+     */
+    public RedisAsyncProducerHandler(String topic, int capacity, int batchSize, long lingerMillis,
+                                     OverflowPolicy overflowPolicy, long maxBlockMillis) {
+        TOPIC = topic;
+        this.topicBytes = SafeEncoder.encode(topic);
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, lingerMillis));
+        this.overflowPolicy = overflowPolicy;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxBlockMillis));
+        this.metrics = MqMetrics.topic(topic);
+
+        this.sender = new Thread(this::sendLoop, TOPIC + "-async-producer");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    @Override
+    public void produce(String message) {
+        produceAsync(message);
+    }
+
+    @Override
+    public void produce(byte[] message) {
+        produceAsync(message);
+    }
+
+    /**
+     * @return 写入redis后完成为true，被丢弃时完成为false，发送失败或被拒绝时异常完成
+     */
+    public CompletableFuture<Boolean> produceAsync(String message) {
+        return produceAsync(new Pending(SafeEncoder.encode(message)));
+    }
+
+    /**
+     * 二进制消息，带消息头，超过阈值时压缩
+     *
+     * @return 写入redis后完成为true，被丢弃时完成为false，发送失败或被拒绝时异常完成
+     */
+    public CompletableFuture<Boolean> produceAsync(byte[] message) {
+        return produceAsync(new Pending(RedisMessageCodec.encode(message)));
+    }
+
+    private CompletableFuture<Boolean> produceAsync(Pending pending) {
+        producing.incrementAndGet();
+        try {
+            return offer(pending);
+        } finally {
+            producing.decrementAndGet();
+        }
+    }
+
+    /**
+     * 延时消息在调用线程中同步写入{topic}:delayed，到期后由消费者端的搬运任务移入队列
+     */
+    @Override
+    public void produce(String message, long delay, TimeUnit unit) {
+        if (!running) {
+            rejectedCount.increment();
+            log.error("Produce redis delayed message error, producer closed (Topic = {}).", TOPIC);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            RedisDelayQueue.add(jedis, TOPIC, message, System.currentTimeMillis() + unit.toMillis(delay));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis delayed message (Topic = {}): {}, delay: {} {}", TOPIC, message, delay, unit);
+            }
+        } catch (Throwable t) {
+            failedCount.increment();
+            log.error("Produce redis delayed message error.", t);
+        } finally {
+            RedisUtil.recordCommand("zadd", start);
+        }
+    }
+
+    private CompletableFuture<Boolean> offer(Pending pending) {
+        if (!running) {
+            return reject(pending, "producer已关闭");
+        }
+        if (buffer.offer(pending)) {
+            return pending.future;
+        }
+
+        switch (overflowPolicy) {
+            case DROP:
+                droppedCount.increment();
+                pending.future.complete(false);
+                return pending.future;
+            case BLOCK:
+                long deadline = System.nanoTime() + maxBlockNanos;
+                while (running && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (buffer.offer(pending)) {
+                        return pending.future;
+                    }
+                }
+                return reject(pending, "等待队列空间超时");
+            default:
+                return reject(pending, "队列已满");
+        }
+    }
+
+    private CompletableFuture<Boolean> reject(Pending pending, String reason) {
+        rejectedCount.increment();
+        pending.future.completeExceptionally(new RejectedExecutionException(reason + ".topic:" + TOPIC));
+        return pending.future;
+    }
+
+    private void sendLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        long firstNanos = 0L;
+
+        while (running || buffer.size() > 0 || !batch.isEmpty()) {
+            Pending pending;
+            while (batch.size() < batchSize && (pending = buffer.poll()) != null) {
+                if (batch.isEmpty()) {
+                    firstNanos = System.nanoTime();
+                }
+                batch.add(pending);
+            }
+
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            long waited = System.nanoTime() - firstNanos;
+            if (batch.size() >= batchSize || waited >= lingerNanos || !running) {
+                send(batch);
+                batch.clear();
+            } else {
+                LockSupport.parkNanos(Math.min(IDLE_PARK_NANOS, lingerNanos - waited));
+            }
+        }
+    }
+
+    private void send(List<Pending> batch) {
+        byte[][] messages = new byte[batch.size()][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = batch.get(i).message;
+        }
+
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            jedis.lpush(topicBytes, messages);
+        } catch (Throwable t) {
+            failedCount.add(batch.size());
+            log.error("Produce redis messages error (Topic = {}), count: {}", TOPIC, batch.size(), t);
+            for (Pending pending : batch) {
+                pending.future.completeExceptionally(t);
+            }
+            return;
+        } finally {
+            RedisUtil.recordCommand("lpush", start);
+        }
+
+        metrics.recordProduce(batch.size());
+        for (Pending pending : batch) {
+            pending.future.complete(true);
+        }
+    }
+
+    /**
+     * 队列中等待发送的消息数（近似值）
+     */
+    public int getPendingCount() {
+        return buffer.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * 不再接收新消息，等待队列中的消息发送完（最长CLOSE_TIMEOUT）
+     */
+    @Override
+    public void close() {
+        running = false;
+        // BLOCK等待中的线程看到running为false后立即拒绝，这里等待很短
+        while (producing.get() > 0) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        try {
+            sender.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sender.isAlive()) {
+            log.warn("Close the redis async producer timeout (Topic = {}), pending: {}", TOPIC, buffer.size());
+        } else {
+            // 发送线程退出后才放入的消息
+            Pending pending;
+            while ((pending = buffer.poll()) != null) {
+                reject(pending, "producer已关闭");
+            }
+        }
+        log.info("Close the redis async producer (Topic = {}).", TOPIC);
+    }
+
+    private static final class Pending {
+        private final byte[] message;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Pending(byte[] message) {
+            this.message = message;
+        }
+    }
+}
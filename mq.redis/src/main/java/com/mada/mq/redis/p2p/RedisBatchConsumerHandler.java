@@ -0,0 +1,306 @@
+package com.mada.mq.redis.p2p;
+
+import com.mada.mq.redis.IRedisBytesCallback;
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisScript;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 批量消费：BRPOP阻塞等待第一条消息，再用一次lua脚本取出最多batchSize-1条，交给工作线程执行回调
+ * <p>
+ * 1.每批消息只需两次网络往返，吞吐不再受限于每条消息一次往返。
+ * 2.工作线程各自一个有界队列，队列满时拉取线程阻塞（背压），不会无限堆积在内存中。
+ * 3.指定keyExtractor时，同一个key的消息总是交给同一个工作线程，按生产顺序执行；未指定时轮流分配，不保证顺序。
+ * 4.消息取出后即从redis删除，回调异常或进程崩溃时队列中未执行的消息会丢失。
+ * 5.shutdown时停止拉取，工作线程执行完队列中的消息；超过等待时间仍未执行的消息放回redis队列的消费端，下次最先被取出。
+ * 6.按二进制读取，字符串消息和二进制消息都能处理；keyExtractor按字符串提取key，指定时回调不能是IRedisBytesCallback。
+ * <p>
+ * Created by madali on 2020/7/16 14:10
+ */
+@Log4j2
+public class RedisBatchConsumerHandler implements IConsumerHandler {
+
+    private static final int BLOCK_TIMEOUT = 1;    //1秒，shutdown后最多1秒停止拉取
+    private static final long SHUTDOWN_TIMEOUT = 10000L;    // 单位：毫秒
+    private static final long DISPATCH_WAIT = 100L;  // 单位：毫秒
+    private static final long RECONNECT_INTERVAL = 1000L;   // 单位：毫秒
+    private static final int WORKER_QUEUE_CAPACITY = 1024;
+
+    // KEYS[1]=队列，ARGV[1]=数量。从右侧取出最多ARGV[1]条，返回顺序为从新到旧
+    private static final RedisScript DRAIN_SCRIPT = new RedisScript(
+            "local n = tonumber(ARGV[1]); " +
+                    "local items = redis.call('lrange', KEYS[1], -n, -1); " +
+                    "if (#items > 0) then " +
+                    "redis.call('ltrim', KEYS[1], 0, -n - 1); " +
+                    "end; " +
+                    "return items;");
+
+    private final String TOPIC;
+    private final byte[] topicBytes;
+    private final int batchSize;
+    private final Function<String, String> keyExtractor;
+    private final Worker[] workers;
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+    // 等待超时，工作线程不再执行队列中的消息
+    private volatile boolean aborted;
+    private volatile boolean started;
+    private volatile Jedis jedis;
+    private int nextWorker;
+
+    /**
+     * @param topic         队列
+     * @param batchSize     每批最多取出的消息数
+     * @param workerThreads 执行回调的线程数
+     * @param keyExtractor  从消息中提取顺序key，同一个key的消息按顺序执行；为空时不保证顺序
+     */
+    public RedisBatchConsumerHandler(String topic, int batchSize, int workerThreads, Function<String, String> keyExtractor) {
+        if (batchSize < 1 || workerThreads < 1) {
+            throw new IllegalArgumentException("batchSize和workerThreads必须大于0.");
+        }
+
+        TOPIC = topic;
+        this.topicBytes = SafeEncoder.encode(topic);
+        this.batchSize = batchSize;
+        this.keyExtractor = keyExtractor;
+        this.workers = new Worker[workerThreads];
+    }
+
+    @Override
+    public <T extends ICallback> void consume(final T callback) {
+        if (Objects.nonNull(keyExtractor) && callback instanceof IRedisBytesCallback) {
+            throw new IllegalArgumentException("keyExtractor按字符串提取key,不支持IRedisBytesCallback.topic:" + TOPIC);
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(TOPIC + "-consumer-" + i, callback);
+            workers[i].start();
+        }
+        started = true;
+
+        // 消费期间搬运到期的延时消息
+        RedisDelayQueue.register(TOPIC);
+        MqMetrics.watchQueue(TOPIC);
+        try {
+            while (running) {
+                try {
+                    if (Objects.isNull(jedis)) {
+                        jedis = RedisUtil.connect();
+                    }
+
+                    long start = System.nanoTime();
+                    List<byte[]> msgs = jedis.brpop(BLOCK_TIMEOUT, topicBytes);
+                    RedisUtil.recordCommand("brpop", start);
+                    if (msgs == null) {
+                        continue;
+                    }
+
+                    dispatch(msgs.get(1));
+                    if (batchSize > 1) {
+                        for (byte[] message : drain(batchSize - 1)) {
+                            dispatch(message);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (JedisConnectionException e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("Consume redis message error, reconnect (Topic = {}).", TOPIC, e);
+                    RedisUtil.disConnect(jedis);
+                    jedis = null;
+                    sleepQuietly(RECONNECT_INTERVAL);
+                } catch (Throwable t) {
+                    log.error("Consume redis message error (Topic = {}).", TOPIC, t);
+                    sleepQuietly(RECONNECT_INTERVAL);
+                }
+            }
+        } finally {
+            // 拉取线程退出后才关闭连接，不会在BRPOP已在服务端取出消息时断开
+            RedisUtil.disConnect(jedis);
+            jedis = null;
+            MqMetrics.unwatchQueue(TOPIC);
+            RedisDelayQueue.unregister(TOPIC);
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * 一次lua脚本取出最多count条消息，按生产顺序（从旧到新）返回
+     */
+    private List<byte[]> drain(int count) {
+        long start = System.nanoTime();
+        try {
+            Object result = DRAIN_SCRIPT.evalBinary(jedis, Collections.singletonList(topicBytes),
+                    Collections.singletonList(SafeEncoder.encode(String.valueOf(count))));
+
+            @SuppressWarnings("unchecked")
+            List<byte[]> messages = new ArrayList<>((List<byte[]>) result);
+            Collections.reverse(messages);
+            return messages;
+        } finally {
+            RedisUtil.recordCommand("drain", start);
+        }
+    }
+
+    private void dispatch(byte[] message) throws InterruptedException {
+        Worker worker;
+        if (Objects.isNull(keyExtractor)) {
+            worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+        } else {
+            String key = keyExtractor.apply(new String(RedisMessageCodec.decode(message), StandardCharsets.UTF_8));
+            worker = workers[Objects.isNull(key) ? 0 : (key.hashCode() & Integer.MAX_VALUE) % workers.length];
+        }
+        // 不用put：shutdown超时后工作线程不再取消息，拉取线程不能一直阻塞
+        while (!worker.queue.offer(message, DISPATCH_WAIT, TimeUnit.MILLISECONDS)) {
+            if (aborted) {
+                requeue(Collections.singletonList(message));
+                return;
+            }
+        }
+        // shutdown期间取出的消息：工作线程可能已停止，队列也可能已被shutdown清空，仍在队列中的取回放回redis
+        if ((aborted || !running) && worker.queue.remove(message)) {
+            requeue(Collections.singletonList(message));
+        }
+    }
+
+    /**
+     * 放回队列的消费端（右侧），按原顺序最先被取出
+     *
+     * @param messages 从旧到新
+     */
+    private void requeue(List<byte[]> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        byte[][] reversed = new byte[messages.size()][];
+        for (int i = 0; i < reversed.length; i++) {
+            reversed[i] = messages.get(messages.size() - 1 - i);
+        }
+
+        long start = System.nanoTime();
+        try (Jedis requeueJedis = RedisUtil.connect()) {
+            requeueJedis.rpush(topicBytes, reversed);
+            log.info("Requeued redis messages (Topic = {}), count: {}", TOPIC, reversed.length);
+        } catch (Throwable t) {
+            log.error("Requeue redis messages error (Topic = {}), count: {}", TOPIC, reversed.length, t);
+        } finally {
+            RedisUtil.recordCommand("rpush", start);
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止拉取，等待工作线程执行完已取出的消息；超时后未执行的消息放回队列
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        running = false;
+
+        if (started) {
+            try {
+                terminated.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                for (Worker worker : workers) {
+                    TimeUnit.NANOSECONDS.timedJoin(worker, Math.max(1L, deadline - System.nanoTime()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            aborted = true;
+            List<byte[]> remaining = new ArrayList<>();
+            for (Worker worker : workers) {
+                worker.queue.drainTo(remaining);
+            }
+            if (!remaining.isEmpty()) {
+                log.warn("Shut down the redis consumer timeout (Topic = {}), requeue: {}", TOPIC, remaining.size());
+                requeue(remaining);
+            }
+        }
+
+        log.info("Shut down the redis consumer (Topic = {}).", TOPIC);
+    }
+
+    /**
+     * 工作线程：只执行自己队列中的消息，同一个队列内按入队顺序执行
+     */
+    private final class Worker extends Thread {
+
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY);
+        private final ICallback callback;
+        private final MqMetrics.TopicMetrics metrics = MqMetrics.topic(TOPIC);
+
+        Worker(String name, ICallback callback) {
+            super(name);
+            setDaemon(true);
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            while ((running || !queue.isEmpty()) && !aborted) {
+                byte[] message;
+                try {
+                    message = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (Objects.isNull(message)) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    RedisMessageCodec.deliver(callback, message);
+                    success = true;
+                    if (log.isDebugEnabled() && metrics.sampleLog()) {
+                        log.debug("Consume redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+                    }
+                } catch (Throwable t) {
+                    log.error("Consume redis message error (Topic = {}), bytes: {}", TOPIC, message.length, t);
+                } finally {
+                    metrics.recordConsume(start, RedisMessageCodec.enqueueMillis(message), success);
+                }
+            }
+        }
+    }
+
+}
@@ -1,13 +1,18 @@
 package com.mada.mq.redis.p2p;
 
-import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
 import com.mada.mq.services.ICallback;
 import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MqMetrics;
 import com.mada.mq.utils.RedisUtil;
 import lombok.extern.log4j.Log4j2;
 import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by madali on 2017/4/27.
@@ -15,38 +20,80 @@ import java.util.List;
 @Log4j2
 public class RedisConsumerHandler implements IConsumerHandler {
 
-    private static final int BLOCK_TIMEOUT = 30;    //30秒
+    private static final int BLOCK_TIMEOUT = 1;    //1秒，shutdown后最多1秒停止拉取
+    private static final long SHUTDOWN_TIMEOUT = 10000L;    // 单位：毫秒
 
     private final Jedis JEDIS;
     private final String TOPIC;
+    private final MqMetrics.TopicMetrics metrics;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+    private volatile boolean started;
 
     public RedisConsumerHandler(String topic) {
         JEDIS = RedisUtil.connect();
         TOPIC = topic;
+        this.metrics = MqMetrics.topic(topic);
     }
 
     @Override
     public <T extends ICallback> void consume(final T callback) {
+        started = true;
+        // 消费期间搬运到期的延时消息
+        RedisDelayQueue.register(TOPIC);
+        MqMetrics.watchQueue(TOPIC);
         try {
-            while (true) {
+            while (running) {
                 //producer/Consumer
-                List<String> msgs = JEDIS.brpop(BLOCK_TIMEOUT, TOPIC);
+                // 按二进制读取，带消息头的二进制消息和字符串消息都能处理
+                List<byte[]> msgs = JEDIS.brpop(BLOCK_TIMEOUT, SafeEncoder.encode(TOPIC));
 
                 if (msgs == null) {
                     continue;
                 }
 
-                String message = msgs.get(1);
-                ((IRedisCallback) callback).execute(message);
-                log.info("Consume redis message: " + message);
+                byte[] message = msgs.get(1);
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    RedisMessageCodec.deliver(callback, message);
+                    success = true;
+                } finally {
+                    metrics.recordConsume(start, RedisMessageCodec.enqueueMillis(message), success);
+                }
+                if (log.isDebugEnabled() && metrics.sampleLog()) {
+                    log.debug("Consume redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+                }
             }
         } catch (Throwable t) {
             log.error("Consume redis message error.", t);
+        } finally {
+            MqMetrics.unwatchQueue(TOPIC);
+            RedisDelayQueue.unregister(TOPIC);
+            terminated.countDown();
         }
     }
 
     @Override
     public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止拉取，等待当前消息的回调执行完再关闭连接；BRPOP取出的消息不会因关闭连接而丢失
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        try {
+            if (started && !terminated.await(timeout, unit)) {
+                log.warn("Shut down the redis consumer timeout (Topic = {}).", TOPIC);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         RedisUtil.disConnect(JEDIS);
         log.info("Shut down the redis consumer (Topic = {}).", TOPIC);
     }
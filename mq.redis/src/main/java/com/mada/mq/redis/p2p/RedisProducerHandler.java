@@ -1,9 +1,15 @@
 package com.mada.mq.redis.p2p;
 
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
 import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.utils.MqMetrics;
 import com.mada.mq.utils.RedisUtil;
 import lombok.extern.log4j.Log4j2;
 import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by madali on 2017/4/27.
@@ -13,19 +19,62 @@ public class RedisProducerHandler implements IProducerHandler {
 
     private final Jedis JEDIS;
     private final String TOPIC;
+    private final MqMetrics.TopicMetrics metrics;
 
     public RedisProducerHandler(String topic) {
         JEDIS = RedisUtil.connect();
         TOPIC = topic;
+        this.metrics = MqMetrics.topic(topic);
     }
 
     @Override
     public void produce(String message) {
+        long start = System.nanoTime();
         try {
             JEDIS.lpush(TOPIC, message);
-            log.info("Produce redis message: " + message);
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis message (Topic = {}): {}", TOPIC, message);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("lpush", start);
+        }
+    }
+
+    @Override
+    public void produce(byte[] message) {
+        long start = System.nanoTime();
+        try {
+            JEDIS.lpush(SafeEncoder.encode(TOPIC), RedisMessageCodec.encode(message));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+            }
         } catch (Throwable t) {
             log.error("Produce redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("lpush", start);
+        }
+    }
+
+    /**
+     * 延时消息先放入{topic}:delayed，到期后由消费者端的搬运任务移入队列，见RedisDelayQueue
+     */
+    @Override
+    public void produce(String message, long delay, TimeUnit unit) {
+        long start = System.nanoTime();
+        try {
+            RedisDelayQueue.add(JEDIS, TOPIC, message, System.currentTimeMillis() + unit.toMillis(delay));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis delayed message (Topic = {}): {}, delay: {} {}", TOPIC, message, delay, unit);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis delayed message error.", t);
+        } finally {
+            RedisUtil.recordCommand("zadd", start);
         }
     }
 
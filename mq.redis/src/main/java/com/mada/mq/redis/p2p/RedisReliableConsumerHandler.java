@@ -0,0 +1,370 @@
+package com.mada.mq.redis.p2p;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisScript;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可靠消费（至少一次）：消息先原子地移入本消费者的处理中列表，回调成功并确认后才删除
+ * <p>
+ * 1.BRPOPLPUSH把消息从队列移到处理中列表（{topic}:processing:{consumerId}），进程崩溃时消息仍在redis中。
+ * 2.回调成功的消息批量确认：攒够ackBatchSize条、超过ackInterval或队列暂时为空时，一次pipeline从处理中列表删除。
+ * 3.回调异常时消息放回队列头部重试，重试次数超过maxRetries后移入死信列表（{topic}:dead）。
+ * 4.每个消费者定期刷新心跳；回收任务发现心跳过期的消费者时，把其处理中列表的消息放回队列（同样计入重试次数）。
+ * 连接异常恢复后，消费者先把自己处理中列表的消息（待确认的除外）放回队列再继续拉取。
+ * 5.重试次数按消息内容记录（{topic}:retries），内容相同的消息共用计数；确认后清除。
+ * 6.shutdown时停止拉取，等待当前消息处理完并确认，再把处理中列表剩余的消息放回队列。
+ * 7.脚本同时操作多个key，redis集群模式下topic需使用{hash tag}。
+ * 8.按二进制读取和确认，字符串消息和二进制消息（带消息头，见RedisMessageCodec）都能处理。
+ * <p>
+ * Created by madali on 2020/7/17 11:05
+ */
+@Log4j2
+public class RedisReliableConsumerHandler implements IConsumerHandler {
+
+    private static final int BLOCK_TIMEOUT = 1;    //1秒，shutdown后最多1秒停止拉取
+    private static final long SHUTDOWN_TIMEOUT = 10000L;    // 单位：毫秒
+    private static final long RECONNECT_INTERVAL = 1000L;   // 单位：毫秒
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final int DEFAULT_ACK_BATCH_SIZE = 100;
+    private static final long ACK_INTERVAL = 200L;  // 单位：毫秒
+    private static final long HEARTBEAT_TTL = 30000L;   // 单位：毫秒
+    private static final long REAP_INTERVAL = 60000L;   // 单位：毫秒
+
+    // KEYS[1]=处理中列表，KEYS[2]=队列，KEYS[3]=重试次数，KEYS[4]=死信列表；ARGV[1]=消息，ARGV[2]=最大重试次数
+    // 返回：-1消息已不在处理中列表，0放回队列，1移入死信列表
+    private static final RedisScript NACK_SCRIPT = new RedisScript(
+            "if (redis.call('lrem', KEYS[1], -1, ARGV[1]) == 0) then " +
+                    "return -1; " +
+                    "end; " +
+                    "if (redis.call('hincrby', KEYS[3], ARGV[1], 1) > tonumber(ARGV[2])) then " +
+                    "redis.call('hdel', KEYS[3], ARGV[1]); " +
+                    "redis.call('lpush', KEYS[4], ARGV[1]); " +
+                    "return 1; " +
+                    "end; " +
+                    "redis.call('rpush', KEYS[2], ARGV[1]); " +
+                    "return 0;");
+
+    // KEYS[1]=处理中列表，KEYS[2]=队列，KEYS[3]=重试次数，KEYS[4]=死信列表，KEYS[5]=心跳，KEYS[6]=消费者集合；
+    // ARGV[1]=最大重试次数，ARGV[2]=消费者id。心跳仍存在时返回-1，否则返回放回的消息数
+    private static final RedisScript REAP_SCRIPT = new RedisScript(
+            "if (redis.call('exists', KEYS[5]) == 1) then " +
+                    "return -1; " +
+                    "end; " +
+                    "local n = 0; " +
+                    "local msg = redis.call('rpop', KEYS[1]); " +
+                    "while msg do " +
+                    "if (redis.call('hincrby', KEYS[3], msg, 1) > tonumber(ARGV[1])) then " +
+                    "redis.call('hdel', KEYS[3], msg); " +
+                    "redis.call('lpush', KEYS[4], msg); " +
+                    "else " +
+                    "redis.call('rpush', KEYS[2], msg); " +
+                    "end; " +
+                    "n = n + 1; " +
+                    "msg = redis.call('rpop', KEYS[1]); " +
+                    "end; " +
+                    "redis.call('srem', KEYS[6], ARGV[2]); " +
+                    "return n;");
+
+    // KEYS[1]=处理中列表，KEYS[2]=队列，KEYS[3]=重试次数，KEYS[4]=死信列表；ARGV[1]=最大重试次数。返回放回的消息数
+    private static final RedisScript RECOVER_SCRIPT = new RedisScript(
+            "local n = 0; " +
+                    "local msg = redis.call('rpop', KEYS[1]); " +
+                    "while msg do " +
+                    "if (redis.call('hincrby', KEYS[3], msg, 1) > tonumber(ARGV[1])) then " +
+                    "redis.call('hdel', KEYS[3], msg); " +
+                    "redis.call('lpush', KEYS[4], msg); " +
+                    "else " +
+                    "redis.call('rpush', KEYS[2], msg); " +
+                    "end; " +
+                    "n = n + 1; " +
+                    "msg = redis.call('rpop', KEYS[1]); " +
+                    "end; " +
+                    "return n;");
+
+    private final String TOPIC;
+    private final String consumerId;
+    private final int maxRetries;
+    private final int ackBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final MqMetrics.TopicMetrics metrics;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private final List<byte[]> pendingAcks = new ArrayList<>();
+    private long lastAckTime = System.currentTimeMillis();
+
+    private volatile boolean running = true;
+    private volatile boolean started;
+    private volatile Jedis jedis;
+    // 连接异常后需回收自己的处理中列表：nack失败或BRPOPLPUSH的响应丢失时，消息留在处理中列表，回收任务不会处理自己的列表
+    private boolean recoverPending;
+
+    public RedisReliableConsumerHandler(String topic) {
+        this(topic, DEFAULT_MAX_RETRIES, DEFAULT_ACK_BATCH_SIZE);
+    }
+
+    /**
+     * @param topic        队列
+     * @param maxRetries   最大重试次数，超过后移入死信列表
+     * @param ackBatchSize 批量确认的消息数
+     */
+    public RedisReliableConsumerHandler(String topic, int maxRetries, int ackBatchSize) {
+        TOPIC = topic;
+        this.maxRetries = maxRetries;
+        this.ackBatchSize = Math.max(1, ackBatchSize);
+        this.consumerId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+        this.metrics = MqMetrics.topic(topic);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, TOPIC + "-reliable-consumer-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static String processingKey(String topic, String consumerId) {
+        return topic + ":processing:" + consumerId;
+    }
+
+    public static String deadLetterKey(String topic) {
+        return topic + ":dead";
+    }
+
+    private String retriesKey() {
+        return TOPIC + ":retries";
+    }
+
+    private String consumersKey() {
+        return TOPIC + ":consumers";
+    }
+
+    private String heartbeatKey(String id) {
+        return TOPIC + ":heartbeat:" + id;
+    }
+
+    @Override
+    public <T extends ICallback> void consume(final T callback) {
+        started = true;
+
+        heartbeat();
+        scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_TTL / 3, HEARTBEAT_TTL / 3, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::reap, 0L, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+
+        byte[] topicKey = SafeEncoder.encode(TOPIC);
+        byte[] processingKey = SafeEncoder.encode(processingKey(TOPIC, consumerId));
+        // 消费期间搬运到期的延时消息
+        RedisDelayQueue.register(TOPIC);
+        MqMetrics.watchQueue(TOPIC);
+        try {
+            while (running) {
+                try {
+                    if (Objects.isNull(jedis)) {
+                        jedis = RedisUtil.connect();
+                    }
+                    if (recoverPending) {
+                        recoverProcessing();
+                        recoverPending = false;
+                    }
+
+                    long start = System.nanoTime();
+                    byte[] message = jedis.rpoplpush(topicKey, processingKey);
+                    if (Objects.isNull(message)) {
+                        // 队列暂时为空，先确认已处理的消息再阻塞等待
+                        flushAcks();
+                        message = jedis.brpoplpush(topicKey, processingKey, BLOCK_TIMEOUT);
+                    }
+                    RedisUtil.recordCommand("brpoplpush", start);
+                    if (Objects.isNull(message)) {
+                        continue;
+                    }
+
+                    long callbackStart = System.nanoTime();
+                    long enqueueMillis = RedisMessageCodec.enqueueMillis(message);
+                    try {
+                        RedisMessageCodec.deliver(callback, message);
+                        metrics.recordConsume(callbackStart, enqueueMillis, true);
+                        if (log.isDebugEnabled() && metrics.sampleLog()) {
+                            log.debug("Consume redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+                        }
+                    } catch (Throwable t) {
+                        metrics.recordConsume(callbackStart, enqueueMillis, false);
+                        log.error("Consume redis message error (Topic = {}), bytes: {}", TOPIC, message.length, t);
+                        nack(message);
+                        continue;
+                    }
+
+                    pendingAcks.add(message);
+                    if (pendingAcks.size() >= ackBatchSize || System.currentTimeMillis() - lastAckTime >= ACK_INTERVAL) {
+                        flushAcks();
+                    }
+                } catch (JedisConnectionException e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("Consume redis message error, reconnect (Topic = {}).", TOPIC, e);
+                    RedisUtil.disConnect(jedis);
+                    jedis = null;
+                    recoverPending = true;
+                    sleepQuietly(RECONNECT_INTERVAL);
+                } catch (Throwable t) {
+                    log.error("Consume redis message error (Topic = {}).", TOPIC, t);
+                    recoverPending = true;
+                    sleepQuietly(RECONNECT_INTERVAL);
+                }
+            }
+        } finally {
+            // 确认已处理的消息，shutdown时不会被当作未处理放回队列
+            try {
+                if (Objects.nonNull(jedis)) {
+                    flushAcks();
+                }
+            } catch (Throwable t) {
+                log.error("Ack redis messages error (Topic = {}).", TOPIC, t);
+            }
+            MqMetrics.unwatchQueue(TOPIC);
+            RedisDelayQueue.unregister(TOPIC);
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * 一次pipeline确认所有已处理的消息；失败时保留，下次重试
+     */
+    private void flushAcks() {
+        lastAckTime = System.currentTimeMillis();
+        if (pendingAcks.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            byte[] processingKey = SafeEncoder.encode(processingKey(TOPIC, consumerId));
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] message : pendingAcks) {
+                pipeline.lrem(processingKey, -1, message);
+            }
+            pipeline.hdel(SafeEncoder.encode(retriesKey()), pendingAcks.toArray(new byte[0][]));
+            pipeline.sync();
+            pendingAcks.clear();
+        } finally {
+            RedisUtil.recordCommand("ack", start);
+        }
+    }
+
+    /**
+     * 先确认已处理的消息，再把处理中列表剩余的消息（未处理或nack失败的）放回队列
+     * <p>
+     * 只在拉取线程中、没有正在处理的消息时调用，处理中列表里除待确认的消息外都不会再被处理
+     */
+    private void recoverProcessing() {
+        flushAcks();
+        long requeued = (Long) RECOVER_SCRIPT.eval(jedis,
+                Arrays.asList(processingKey(TOPIC, consumerId), TOPIC, retriesKey(), deadLetterKey(TOPIC)),
+                Collections.singletonList(String.valueOf(maxRetries)));
+        if (requeued > 0) {
+            log.info("Recovered redis processing messages after reconnect (Topic = {}), requeued: {}", TOPIC, requeued);
+        }
+    }
+
+    private void nack(byte[] message) {
+        long result = (Long) NACK_SCRIPT.evalBinary(jedis,
+                Arrays.asList(SafeEncoder.encode(processingKey(TOPIC, consumerId)), SafeEncoder.encode(TOPIC),
+                        SafeEncoder.encode(retriesKey()), SafeEncoder.encode(deadLetterKey(TOPIC))),
+                Arrays.asList(message, SafeEncoder.encode(String.valueOf(maxRetries))));
+        if (result == 1L) {
+            log.warn("Redis message exceeded max retries, moved to dead letter (Topic = {}), bytes: {}", TOPIC, message.length);
+        }
+    }
+
+    private void heartbeat() {
+        try (Jedis heartbeatJedis = RedisUtil.connect()) {
+            Pipeline pipeline = heartbeatJedis.pipelined();
+            pipeline.psetex(heartbeatKey(consumerId), HEARTBEAT_TTL, String.valueOf(System.currentTimeMillis()));
+            pipeline.sadd(consumersKey(), consumerId);
+            pipeline.sync();
+        } catch (Throwable t) {
+            log.error("Redis consumer heartbeat error (Topic = {}).", TOPIC, t);
+        }
+    }
+
+    /**
+     * 把心跳过期的消费者处理中列表的消息放回队列
+     */
+    private void reap() {
+        try (Jedis reapJedis = RedisUtil.connect()) {
+            for (String id : reapJedis.smembers(consumersKey())) {
+                if (consumerId.equals(id)) {
+                    continue;
+                }
+                reap(reapJedis, id);
+            }
+        } catch (Throwable t) {
+            log.error("Reap redis consumers error (Topic = {}).", TOPIC, t);
+        }
+    }
+
+    private void reap(Jedis reapJedis, String id) {
+        long requeued = (Long) REAP_SCRIPT.eval(reapJedis,
+                Arrays.asList(processingKey(TOPIC, id), TOPIC, retriesKey(), deadLetterKey(TOPIC), heartbeatKey(id), consumersKey()),
+                Arrays.asList(String.valueOf(maxRetries), id));
+        if (requeued >= 0) {
+            log.info("Reaped dead redis consumer {} (Topic = {}), requeued: {}", id, TOPIC, requeued);
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止拉取，等待当前消息处理完并确认；处理中列表剩余的消息（超时未处理完的）放回队列
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        try {
+            if (started && !terminated.await(timeout, unit)) {
+                log.warn("Shut down the redis consumer timeout (Topic = {}).", TOPIC);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        scheduler.shutdownNow();
+        RedisUtil.disConnect(jedis);
+
+        // 删除心跳后立刻回收自己的处理中列表，不必等心跳过期
+        try (Jedis shutdownJedis = RedisUtil.connect()) {
+            shutdownJedis.del(heartbeatKey(consumerId));
+            reap(shutdownJedis, consumerId);
+        } catch (Throwable t) {
+            log.error("Requeue redis processing messages error (Topic = {}).", TOPIC, t);
+        }
+        log.info("Shut down the redis consumer (Topic = {}).", TOPIC);
+    }
+}
@@ -0,0 +1,350 @@
+package com.mada.mq.redis.partition;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisScript;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分区topic的消费者：同一个消费组内的消费者通过redis租约分配互不相交的分区
+ * <p>
+ * 1.消费者定期在成员ZSET（{topic}:{group}:members）中续期，过期的成员被移除；成员按id排序后，
+ * 第i个成员负责 partition % 成员数 == i 的分区。
+ * 2.每个分区一个租约key（{topic}:{group}:lease:{partition}，SET NX PX），持有租约才消费，租约定期续期；
+ * 分配变化时先通知该分区的消费线程停止，停止期间继续续期，确认线程退出后的下一次分配才释放租约，
+ * 新的持有者接手前旧的持有者已停止，同一个key的消息不会并行执行。分配线程从不等待消费线程，回调慢不影响心跳和续期。
+ * 3.每个持有的分区一个消费线程，分区内按顺序执行；吞吐随分区数和消费者数增加。
+ * 4.消费线程每次BRPOP前检查租约的本地有效期，续期失败或未及时续期时停止拉取。
+ * 5.消费者宕机后其租约在LEASE_TTL内过期，由其他消费者接手。
+ * 6.按二进制读取，字符串消息和二进制消息（带消息头，见RedisMessageCodec）都能处理。
+ * 7.consume期间搬运所有分区的延时消息（不论是否持有该分区），多个消费者同时搬运由RedisDelayQueue的lua脚本保证不重复。
+ * 8.消费数、耗时按topic统计；队列长度按分区列表（{topic}:{partition}）分别采样，见MqMetrics。
+ * <p>
+ * Created by madali on 2020/7/24 10:40
+ */
+@Log4j2
+public class RedisPartitionedConsumerHandler implements IConsumerHandler {
+
+    private static final int BLOCK_TIMEOUT = 1;    //1秒，分配变化时消费线程最多1秒后退出
+    private static final long LEASE_TTL = 10000L;   // 单位：毫秒
+    private static final long REBALANCE_INTERVAL = 2000L;   // 单位：毫秒
+    private static final long SHUTDOWN_TIMEOUT = 10000L;    // 单位：毫秒
+
+    // KEYS[1]=租约，ARGV[1]=持有者，ARGV[2]=租期（毫秒）。仍由自己持有时续期并返回1
+    private static final RedisScript RENEW_SCRIPT = new RedisScript(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]); " +
+                    "return 1; " +
+                    "end; " +
+                    "return 0;");
+
+    // KEYS[1]=租约，ARGV[1]=持有者。仍由自己持有时删除
+    private static final RedisScript RELEASE_SCRIPT = new RedisScript(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "return redis.call('del', KEYS[1]); " +
+                    "end; " +
+                    "return 0;");
+
+    private final String TOPIC;
+    private final String group;
+    private final int partitions;
+    private final String consumerId;
+    private final MqMetrics.TopicMetrics metrics;
+
+    // 持有租约的分区 -> 消费线程
+    private final Map<Integer, PartitionWorker> workers = new ConcurrentHashMap<>();
+
+    // shutdown时唤醒分配线程
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+    private volatile boolean started;
+
+    /**
+     * @param topic      topic
+     * @param group      消费组
+     * @param partitions 分区数，需与生产者一致
+     */
+    public RedisPartitionedConsumerHandler(String topic, String group, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions必须大于0.");
+        }
+
+        TOPIC = topic;
+        this.group = group;
+        this.partitions = partitions;
+        this.consumerId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+        this.metrics = MqMetrics.topic(topic);
+    }
+
+    private String membersKey() {
+        return TOPIC + ":" + group + ":members";
+    }
+
+    private String leaseKey(int partition) {
+        return TOPIC + ":" + group + ":lease:" + partition;
+    }
+
+    /**
+     * 当前线程执行分区分配，直到shutdown
+     */
+    @Override
+    public <T extends ICallback> void consume(final T callback) {
+        started = true;
+        for (int partition = 0; partition < partitions; partition++) {
+            RedisDelayQueue.register(RedisPartitionedProducerHandler.partitionKey(TOPIC, partition));
+            MqMetrics.watchQueue(RedisPartitionedProducerHandler.partitionKey(TOPIC, partition));
+        }
+
+        try {
+            while (running) {
+                try {
+                    rebalance(callback);
+                } catch (Throwable t) {
+                    log.error("Rebalance redis partitions error (Topic = {}, Group = {}).", TOPIC, group, t);
+                }
+
+                try {
+                    stopSignal.await(REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            for (int partition = 0; partition < partitions; partition++) {
+                MqMetrics.unwatchQueue(RedisPartitionedProducerHandler.partitionKey(TOPIC, partition));
+                RedisDelayQueue.unregister(RedisPartitionedProducerHandler.partitionKey(TOPIC, partition));
+            }
+            releaseAll();
+            terminated.countDown();
+        }
+    }
+
+    private void rebalance(ICallback callback) {
+        try (Jedis jedis = RedisUtil.connect()) {
+            long now = System.currentTimeMillis();
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.zadd(membersKey(), now + LEASE_TTL, consumerId);
+            pipeline.zremrangeByScore(membersKey(), 0, now);
+            Response<Set<String>> membersResponse = pipeline.zrange(membersKey(), 0, -1);
+            pipeline.sync();
+
+            // 按id排序，各消费者算出的分配一致
+            List<String> members = new ArrayList<>(membersResponse.get());
+            Collections.sort(members);
+            int index = members.indexOf(consumerId);
+
+            for (int partition = 0; partition < partitions; partition++) {
+                boolean assigned = index >= 0 && partition % members.size() == index;
+                PartitionWorker worker = workers.get(partition);
+
+                if (Objects.nonNull(worker) && !worker.isAlive()) {
+                    // 消费线程已退出（停止、租约失效或异常），确认退出后才释放租约
+                    workers.remove(partition);
+                    if (!assigned) {
+                        release(jedis, partition);
+                    }
+                    worker = null;
+                }
+
+                if (Objects.nonNull(worker)) {
+                    if (worker.active && !assigned) {
+                        // 只通知停止，不等待；线程执行完当前消息前继续续期
+                        worker.active = false;
+                        log.info("Revoking redis partition (Topic = {}, Group = {}, Partition = {}).", TOPIC, group, partition);
+                    }
+                    if (!renew(jedis, partition, worker) && worker.active) {
+                        log.warn("Lost redis partition lease (Topic = {}, Group = {}, Partition = {}).", TOPIC, group, partition);
+                        worker.active = false;
+                    }
+                } else if (assigned) {
+                    long acquireStart = System.currentTimeMillis();
+                    if ("OK".equals(jedis.set(leaseKey(partition), consumerId, "NX", "PX", LEASE_TTL))
+                            // 消费线程退出后租约仍由自己持有
+                            || renew(jedis, partition)) {
+                        startWorker(partition, callback, acquireStart + LEASE_TTL);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean renew(Jedis jedis, int partition) {
+        Object renewed = RENEW_SCRIPT.eval(jedis, Collections.singletonList(leaseKey(partition)),
+                Arrays.asList(consumerId, String.valueOf(LEASE_TTL)));
+        return Long.valueOf(1L).equals(renewed);
+    }
+
+    /**
+     * 续期并更新消费线程看到的租约有效期；有效期从发出续期命令前算起，不会比redis中的晚
+     */
+    private boolean renew(Jedis jedis, int partition, PartitionWorker worker) {
+        long renewStart = System.currentTimeMillis();
+        if (renew(jedis, partition)) {
+            worker.leaseValidUntil = renewStart + LEASE_TTL;
+            return true;
+        }
+        worker.leaseValidUntil = 0L;
+        return false;
+    }
+
+    private void release(Jedis jedis, int partition) {
+        RELEASE_SCRIPT.eval(jedis, Collections.singletonList(leaseKey(partition)), Collections.singletonList(consumerId));
+        log.info("Released redis partition (Topic = {}, Group = {}, Partition = {}).", TOPIC, group, partition);
+    }
+
+    /**
+     * 通知所有消费线程停止，等待期间继续续期，线程退出后释放其租约
+     */
+    private void releaseAll() {
+        for (PartitionWorker worker : workers.values()) {
+            worker.active = false;
+        }
+
+        try (Jedis jedis = RedisUtil.connect()) {
+            while (!workers.isEmpty()) {
+                PartitionWorker alive = null;
+                for (Map.Entry<Integer, PartitionWorker> entry : new ArrayList<>(workers.entrySet())) {
+                    if (entry.getValue().isAlive()) {
+                        renew(jedis, entry.getKey(), entry.getValue());
+                        alive = entry.getValue();
+                    } else {
+                        workers.remove(entry.getKey());
+                        release(jedis, entry.getKey());
+                    }
+                }
+
+                if (Objects.nonNull(alive)) {
+                    try {
+                        alive.join(REBALANCE_INTERVAL);
+                    } catch (InterruptedException e) {
+                        // 不再等待，未释放的租约在LEASE_TTL后过期
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            jedis.zrem(membersKey(), consumerId);
+        } catch (Throwable t) {
+            log.error("Release redis partitions error (Topic = {}, Group = {}).", TOPIC, group, t);
+        }
+    }
+
+    private void startWorker(int partition, ICallback callback, long leaseValidUntil) {
+        PartitionWorker worker = new PartitionWorker(partition, callback, leaseValidUntil);
+        workers.put(partition, worker);
+        worker.start();
+        log.info("Assigned redis partition (Topic = {}, Group = {}, Partition = {}).", TOPIC, group, partition);
+    }
+
+    /**
+     * 当前持有的分区
+     */
+    public Set<Integer> getAssignedPartitions() {
+        Set<Integer> assigned = new TreeSet<>();
+        workers.forEach((partition, worker) -> {
+            if (worker.active && worker.isAlive()) {
+                assigned.add(partition);
+            }
+        });
+        return assigned;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止各分区的消费线程（各自执行完当前消息）并释放租约，其他消费者可以立即接手
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        stopSignal.countDown();
+        try {
+            if (started && !terminated.await(timeout, unit)) {
+                log.warn("Shut down the redis partitioned consumer timeout (Topic = {}, Group = {}).", TOPIC, group);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Shut down the redis partitioned consumer (Topic = {}, Group = {}).", TOPIC, group);
+    }
+
+    /**
+     * 一个分区一个消费线程，分区内按顺序执行
+     */
+    private final class PartitionWorker extends Thread {
+
+        private final int partition;
+        private final ICallback callback;
+        private volatile boolean active = true;
+        // 租约的本地有效期（毫秒时间戳），由分配线程续期时更新
+        private volatile long leaseValidUntil;
+
+        PartitionWorker(int partition, ICallback callback, long leaseValidUntil) {
+            super(TOPIC + "-partition-" + partition);
+            setDaemon(true);
+            this.partition = partition;
+            this.callback = callback;
+            this.leaseValidUntil = leaseValidUntil;
+        }
+
+        @Override
+        public void run() {
+            byte[] partitionKey = SafeEncoder.encode(RedisPartitionedProducerHandler.partitionKey(TOPIC, partition));
+            try (Jedis jedis = RedisUtil.connect()) {
+                while (active) {
+                    // BRPOP最多阻塞BLOCK_TIMEOUT，租约在此之前可能过期时不再拉取，由下一次分配重新获取租约
+                    if (System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(BLOCK_TIMEOUT) >= leaseValidUntil) {
+                        log.warn("Redis partition lease expired, stop consuming (Topic = {}, Partition = {}).", TOPIC, partition);
+                        break;
+                    }
+
+                    long start = System.nanoTime();
+                    List<byte[]> msgs = jedis.brpop(BLOCK_TIMEOUT, partitionKey);
+                    RedisUtil.recordCommand("brpop", start);
+                    if (msgs == null) {
+                        continue;
+                    }
+
+                    byte[] message = msgs.get(1);
+                    long callbackStart = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        RedisMessageCodec.deliver(callback, message);
+                        success = true;
+                        if (log.isDebugEnabled() && metrics.sampleLog()) {
+                            log.debug("Consume redis message (Topic = {}, Partition = {}), bytes: {}", TOPIC, partition, message.length);
+                        }
+                    } catch (Throwable t) {
+                        log.error("Consume redis message error (Topic = {}, Partition = {}), bytes: {}", TOPIC, partition, message.length, t);
+                    } finally {
+                        metrics.recordConsume(callbackStart, RedisMessageCodec.enqueueMillis(message), success);
+                    }
+                }
+            } catch (Throwable t) {
+                // 线程退出，下次分配时重新启动
+                log.error("Consume redis partition error (Topic = {}, Partition = {}).", TOPIC, partition, t);
+            }
+        }
+    }
+
+}
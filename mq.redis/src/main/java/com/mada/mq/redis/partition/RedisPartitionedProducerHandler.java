@@ -0,0 +1,143 @@
+package com.mada.mq.redis.partition;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分区topic的生产者：按消息key的hash写入N个分区列表之一（{topic}:{partition}）
+ * <p>
+ * 1.同一个key的消息总在同一个分区，分区由消费组内唯一的消费者顺序消费，保证同一个key的顺序。
+ * 2.不指定key时轮流写入各分区。
+ * 3.所有分区都通过RedisUtil的同一个连接池写入同一个redis节点，分区提高的是消费并行度，不能把热点topic分散到多个节点。
+ * 4.分区数需与消费者一致，修改分区数会改变key到分区的映射。
+ * 5.延时消息先选定分区，再放入该分区的{topic}:{partition}:delayed，到期后移入该分区，见RedisDelayQueue。
+ * <p>
+ * Created by madali on 2020/7/24 10:08
+ */
+@Log4j2
+public class RedisPartitionedProducerHandler implements IProducerHandler {
+
+    private final String TOPIC;
+    private final int partitions;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final MqMetrics.TopicMetrics metrics;
+
+    /**
+     * @param topic      topic
+     * @param partitions 分区数
+     */
+    public RedisPartitionedProducerHandler(String topic, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions必须大于0.");
+        }
+
+        TOPIC = topic;
+        this.partitions = partitions;
+        this.metrics = MqMetrics.topic(topic);
+    }
+
+    public static String partitionKey(String topic, int partition) {
+        return topic + ":" + partition;
+    }
+
+    /**
+     * 同一个key总是得到同一个分区（String.hashCode在各JVM中一致）
+     */
+    public static int partition(String key, int partitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    @Override
+    public void produce(String message) {
+        produce(message, null);
+    }
+
+    @Override
+    public void produce(String message, String key) {
+        int partition = partitionOf(key);
+
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            jedis.lpush(partitionKey(TOPIC, partition), message);
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis message (Topic = {}, Partition = {}): {}", TOPIC, partition, message);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("lpush", start);
+        }
+    }
+
+    @Override
+    public void produce(byte[] message) {
+        produce(message, null);
+    }
+
+    /**
+     * 往指定key所在分区生产二进制消息（带消息头，超过阈值时压缩），key为空时轮流选择分区
+     */
+    public void produce(byte[] message, String key) {
+        int partition = partitionOf(key);
+
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            jedis.lpush(SafeEncoder.encode(partitionKey(TOPIC, partition)), RedisMessageCodec.encode(message));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis message (Topic = {}, Partition = {}), bytes: {}", TOPIC, partition, message.length);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("lpush", start);
+        }
+    }
+
+    @Override
+    public void produce(String message, long delay, TimeUnit unit) {
+        produce(message, null, delay, unit);
+    }
+
+    /**
+     * 往指定key所在分区生产延时消息，key为空时轮流选择分区
+     */
+    public void produce(String message, String key, long delay, TimeUnit unit) {
+        int partition = partitionOf(key);
+
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            RedisDelayQueue.add(jedis, partitionKey(TOPIC, partition), message, System.currentTimeMillis() + unit.toMillis(delay));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis delayed message (Topic = {}, Partition = {}): {}, delay: {} {}", TOPIC, partition, message, delay, unit);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis delayed message error.", t);
+        } finally {
+            RedisUtil.recordCommand("zadd", start);
+        }
+    }
+
+    private int partitionOf(String key) {
+        return Objects.isNull(key)
+                ? (nextPartition.getAndIncrement() & Integer.MAX_VALUE) % partitions
+                : partition(key, partitions);
+    }
+
+    @Override
+    public void close() {
+        log.info("Close the redis partitioned producer (Topic = {}).", TOPIC);
+    }
+}
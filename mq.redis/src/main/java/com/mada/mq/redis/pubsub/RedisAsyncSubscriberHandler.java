@@ -0,0 +1,314 @@
+package com.mada.mq.redis.pubsub;
+
+import com.mada.common.redis.LatencyHistogram;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.pubsub.ISubscriberHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步订阅：jedis读线程只把消息放入队列，回调由工作线程池执行
+ * <p>
+ * 1.回调慢不会拖慢读取，避免redis因客户端输出缓冲区超限（client-output-buffer-limit pubsub）断开连接。
+ * 2.一个连接同时订阅多个频道（SUBSCRIBE）和多个模式（PSUBSCRIBE）。
+ * 3.每个频道（模式匹配的消息按模式）一个有界队列，同一队列的消息按顺序执行，不同队列并行；队列满时丢弃新消息并计数，不会阻塞读线程。
+ * 4.指标：各频道/模式的队列深度、丢弃数，从收到消息到回调完成的本地耗时直方图，以及按消息头入队时间统计的端到端延迟直方图
+ * （只有带消息头的二进制消息有入队时间，见RedisMessageCodec）。
+ * 5.连接断开后自动重新订阅，断开期间发布的消息会丢失（pub/sub本身不保存消息）。
+ * 6.按二进制订阅，回调为IRedisBytesCallback时收到消息体，为IRedisCallback时收到字符串。
+ * 7.shutdown时等待已入队的消息执行完（最长SHUTDOWN_TIMEOUT），超时未执行的消息计入丢弃数。
+ * <p>
+ * Created by madali on 2020/7/22 10:35
+ */
+@Log4j2
+public class RedisAsyncSubscriberHandler implements ISubscriberHandler {
+
+    private static final long RECONNECT_INTERVAL = 1000L;   // 单位：毫秒
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    // 一个频道每次最多连续执行的消息数，之后让出线程给其他频道
+    private static final int DRAIN_BATCH = 100;
+    private static final long SHUTDOWN_TIMEOUT = 5000L;   // 单位：毫秒
+
+    private final String[] channels;
+    private final String[] patterns;
+    private final byte[][] channelBytes;
+    private final byte[][] patternBytes;
+    private final int queueCapacity;
+    private final ExecutorService executor;
+
+    private final Map<String, ChannelQueue> queues = new ConcurrentHashMap<>();
+    private final LatencyHistogram localDeliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+
+    private volatile boolean running = true;
+    private volatile BinaryJedisPubSub pubSub;
+    private volatile Jedis jedis;
+
+    public RedisAsyncSubscriberHandler(String topic) {
+        this(Collections.singletonList(topic), Collections.emptyList(), Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param channels      订阅的频道
+     * @param patterns      订阅的模式，如news.*
+     * @param workerThreads 执行回调的线程数
+     * @param queueCapacity 每个频道的队列容量
+     */
+    public RedisAsyncSubscriberHandler(Collection<String> channels, Collection<String> patterns, int workerThreads, int queueCapacity) {
+        if (channels.isEmpty() && patterns.isEmpty()) {
+            throw new IllegalArgumentException("channels和patterns不能同时为空.");
+        }
+
+        this.channels = channels.toArray(new String[0]);
+        this.patterns = patterns.toArray(new String[0]);
+        this.channelBytes = encode(this.channels);
+        this.patternBytes = encode(this.patterns);
+        this.queueCapacity = queueCapacity;
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> {
+            Thread thread = new Thread(r, "redis-subscriber-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public <T extends ICallback> void subscribe(final T callback) {
+        while (running) {
+            pubSub = new BinaryJedisPubSub() {
+                @Override
+                public void onMessage(byte[] channel, byte[] message) {
+                    enqueue(SafeEncoder.encode(channel), message, callback);
+                }
+
+                @Override
+                public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+                    // 按模式排队：模式匹配的频道数量不受限，按频道建队列会无限增长
+                    enqueue(SafeEncoder.encode(pattern), message, callback);
+                }
+
+                @Override
+                public void onSubscribe(byte[] channel, int subscribedChannels) {
+                    if (!running) {
+                        stop(this);
+                        return;
+                    }
+                    // 频道订阅完成后在同一个连接上订阅模式
+                    if (patternBytes.length > 0 && Arrays.equals(channel, channelBytes[channelBytes.length - 1])) {
+                        psubscribe(patternBytes);
+                    }
+                }
+
+                @Override
+                public void onPSubscribe(byte[] pattern, int subscribedChannels) {
+                    if (!running) {
+                        stop(this);
+                    }
+                }
+            };
+
+            try {
+                jedis = RedisUtil.connect();
+                // 连接期间已shutdown
+                if (!running) {
+                    break;
+                }
+                if (channelBytes.length > 0) {
+                    jedis.subscribe(pubSub, channelBytes);
+                } else {
+                    jedis.psubscribe(pubSub, patternBytes);
+                }
+            } catch (Throwable t) {
+                if (running) {
+                    log.error("Subscribe redis message error, resubscribe (Channels = {}, Patterns = {}).",
+                            Arrays.toString(channels), Arrays.toString(patterns), t);
+                    sleepQuietly(RECONNECT_INTERVAL);
+                }
+            } finally {
+                RedisUtil.disConnect(jedis);
+            }
+        }
+    }
+
+    /**
+     * 在jedis读线程中调用，不能阻塞
+     */
+    private void enqueue(String channel, byte[] message, ICallback callback) {
+        ChannelQueue queue = queues.computeIfAbsent(channel, k -> new ChannelQueue(k, queueCapacity));
+        if (!queue.messages.offer(new Received(message, System.nanoTime()))) {
+            queue.dropped.increment();
+            return;
+        }
+
+        if (queue.scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(queue, callback));
+            } catch (RejectedExecutionException e) {
+                // 已关闭
+                queue.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 同一个频道同一时间只有一个drain任务，保证顺序；shutdown后线程池不再接受任务，当前任务一直执行到队列为空
+     */
+    private void drain(ChannelQueue queue, ICallback callback) {
+        for (int i = 0; i < DRAIN_BATCH || !running; i++) {
+            Received received = queue.messages.poll();
+            if (Objects.isNull(received)) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            long enqueueMillis = RedisMessageCodec.enqueueMillis(received.message);
+            boolean success = false;
+            try {
+                RedisMessageCodec.deliver(callback, received.message);
+                success = true;
+                if (log.isDebugEnabled() && queue.metrics.sampleLog()) {
+                    log.debug("Subscribe redis message (Channel = {}), bytes: {}", queue.channel, received.message.length);
+                }
+            } catch (Throwable t) {
+                log.error("Subscribe redis message error (Channel = {}), bytes: {}", queue.channel, received.message.length, t);
+            } finally {
+                queue.metrics.recordConsume(start, enqueueMillis, success);
+                localDeliveryLatency.recordNanos(System.nanoTime() - received.receivedNanos);
+                if (enqueueMillis > 0) {
+                    endToEndLatency.recordNanos(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - enqueueMillis));
+                }
+            }
+        }
+
+        queue.scheduled.set(false);
+        // 释放标记后可能有新消息入队但没有提交任务
+        if (!queue.messages.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(queue, callback));
+            } catch (RejectedExecutionException e) {
+                queue.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 运行指标：各频道队列深度、丢弃数，收到消息到回调完成的本地耗时直方图，入队到回调完成的端到端延迟直方图
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> queueDepth = new TreeMap<>();
+        Map<String, Object> dropped = new TreeMap<>();
+        queues.forEach((channel, queue) -> {
+            queueDepth.put(channel, queue.messages.size());
+            dropped.put(channel, queue.dropped.sum());
+        });
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queueDepth", queueDepth);
+        metrics.put("dropped", dropped);
+        metrics.put("localDeliveryLatency", localDeliveryLatency.snapshot());
+        metrics.put("endToEndLatency", endToEndLatency.snapshot());
+        return metrics;
+    }
+
+    /**
+     * shutdown发生在订阅完成之前时isSubscribed为false，shutdown无法退订，由读线程在订阅完成的回调中退订
+     */
+    private static void stop(BinaryJedisPubSub subscribed) {
+        subscribed.unsubscribe();
+        subscribed.punsubscribe();
+    }
+
+    private static byte[][] encode(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = SafeEncoder.encode(names[i]);
+        }
+        return encoded;
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        BinaryJedisPubSub currentPubSub = pubSub;
+        if (Objects.nonNull(currentPubSub) && currentPubSub.isSubscribed()) {
+            try {
+                currentPubSub.unsubscribe();
+                currentPubSub.punsubscribe();
+            } catch (Throwable t) {
+                RedisUtil.disConnect(jedis);
+            }
+        }
+        executor.shutdown();
+        awaitDrained();
+        log.info("Shut down the redis subscriber (Channels = {}, Patterns = {}).", Arrays.toString(channels), Arrays.toString(patterns));
+    }
+
+    /**
+     * 等待已入队的消息执行完，超时后中断回调，未执行的消息计入丢弃数
+     */
+    private void awaitDrained() {
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        queues.forEach((channel, queue) -> {
+            int remaining = 0;
+            while (Objects.nonNull(queue.messages.poll())) {
+                remaining++;
+            }
+            if (remaining > 0) {
+                queue.dropped.add(remaining);
+                log.warn("Drop redis messages not delivered before shutdown (Channel = {}), count: {}", channel, remaining);
+            }
+        });
+    }
+
+    private static final class ChannelQueue {
+        private final String channel;
+        private final BlockingQueue<Received> messages;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder dropped = new LongAdder();
+        private final MqMetrics.TopicMetrics metrics;
+
+        ChannelQueue(String channel, int capacity) {
+            this.channel = channel;
+            this.messages = new ArrayBlockingQueue<>(capacity);
+            this.metrics = MqMetrics.topic(channel);
+        }
+    }
+
+    private static final class Received {
+        private final byte[] message;
+        private final long receivedNanos;
+
+        Received(byte[] message, long receivedNanos) {
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.mada.mq.redis.pubsub;
 
+import com.mada.mq.redis.RedisMessageCodec;
 import com.mada.mq.services.pubsub.IPublisherHandler;
+import com.mada.mq.utils.MqMetrics;
 import com.mada.mq.utils.RedisUtil;
 import lombok.extern.log4j.Log4j2;
 import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Created by madali on 2017/4/27.
@@ -13,19 +16,43 @@ public class RedisPublisherHandler implements IPublisherHandler {
 
     private final Jedis JEDIS;
     private final String TOPIC;
+    private final MqMetrics.TopicMetrics metrics;
 
     public RedisPublisherHandler(String topic) {
         JEDIS = RedisUtil.connect();
         TOPIC = topic;
+        this.metrics = MqMetrics.topic(topic);
     }
 
     @Override
     public void publish(String message) {
+        long start = System.nanoTime();
         try {
             JEDIS.publish(TOPIC, message);
-            log.info("Publish redis message: " + message);
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Publish redis message (Topic = {}): {}", TOPIC, message);
+            }
         } catch (Throwable t) {
             log.error("Publish redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("publish", start);
+        }
+    }
+
+    @Override
+    public void publish(byte[] message) {
+        long start = System.nanoTime();
+        try {
+            JEDIS.publish(SafeEncoder.encode(TOPIC), RedisMessageCodec.encode(message));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Publish redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+            }
+        } catch (Throwable t) {
+            log.error("Publish redis message error.", t);
+        } finally {
+            RedisUtil.recordCommand("publish", start);
         }
     }
 
@@ -1,12 +1,14 @@
 package com.mada.mq.redis.pubsub;
 
-import com.mada.mq.redis.IRedisCallback;
+import com.mada.mq.redis.RedisMessageCodec;
 import com.mada.mq.services.ICallback;
 import com.mada.mq.services.pubsub.ISubscriberHandler;
+import com.mada.mq.utils.MqMetrics;
 import com.mada.mq.utils.RedisUtil;
 import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPubSub;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Created by madali on 2017/4/27.
@@ -16,22 +18,34 @@ public class RedisSubscriberHandler implements ISubscriberHandler {
 
     private final Jedis JEDIS;
     private final String TOPIC;
+    private final MqMetrics.TopicMetrics metrics;
 
     public RedisSubscriberHandler(String topic) {
         JEDIS = RedisUtil.connect();
         TOPIC = topic;
+        this.metrics = MqMetrics.topic(topic);
     }
 
     @Override
     public <T extends ICallback> void subscribe(final T callback) {
         try {
-            JEDIS.subscribe(new JedisPubSub() {
+            // 按二进制订阅，带消息头的二进制消息和字符串消息都能处理
+            JEDIS.subscribe(new BinaryJedisPubSub() {
                 @Override
-                public void onMessage(String channel, String message) {
-                    ((IRedisCallback) callback).execute(message);
-                    log.info("Subscribe redis message: " + message);
+                public void onMessage(byte[] channel, byte[] message) {
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        RedisMessageCodec.deliver(callback, message);
+                        success = true;
+                    } finally {
+                        metrics.recordConsume(start, RedisMessageCodec.enqueueMillis(message), success);
+                    }
+                    if (log.isDebugEnabled() && metrics.sampleLog()) {
+                        log.debug("Subscribe redis message (Topic = {}), bytes: {}", TOPIC, message.length);
+                    }
                 }
-            }, TOPIC);
+            }, SafeEncoder.encode(TOPIC));
         } catch (Throwable t) {
             log.error("Subscribe redis message error.", t);
         }
@@ -0,0 +1,341 @@
+package com.mada.mq.redis.stream;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.ICallback;
+import com.mada.mq.services.p2p.IConsumerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisRawConnection;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.mada.mq.utils.RedisRawConnection.asList;
+import static com.mada.mq.utils.RedisRawConnection.asString;
+
+/**
+ * 基于redis stream消费组的消费者
+ * <p>
+ * 1.同一个消费组内的消费者分摊消息，不同消费组各自消费全部消息（可重放）；消费进度由redis按消费组记录。
+ * 2.XREADGROUP每次最多读取count条，回调成功的消息一次XACK批量确认；回调异常的消息留在pending列表中。
+ * 3.启动时先重新处理本消费者上次未确认的消息；之后定期用XCLAIM认领空闲超过minIdle的pending消息（包括已宕机消费者的），
+ * 投递次数超过maxRetries的消息写入死信stream（{topic}:dead）后确认。
+ * 4.消费者名称需固定（如主机名），重启后才能接着处理自己的pending消息。
+ * 5.consume期间搬运该stream的到期延时消息，见RedisDelayQueue。
+ * 6.字段data按二进制读取，字符串消息和二进制消息（带消息头，见RedisMessageCodec）都能处理。
+ * <p>
+ * Created by madali on 2020/7/20 11:40
+ */
+@Log4j2
+public class RedisStreamConsumerHandler implements IConsumerHandler {
+
+    private static final long BLOCK_MILLIS = 2000L;  // 需小于连接的读超时
+    private static final long RECONNECT_INTERVAL = 1000L;   // 单位：毫秒
+    private static final long SHUTDOWN_TIMEOUT = 10000L;    // 单位：毫秒
+    private static final long RECLAIM_INTERVAL = 30000L;    // 单位：毫秒
+    private static final long MIN_IDLE = 60000L;    // 单位：毫秒
+    private static final int DEFAULT_COUNT = 100;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEAD_LETTER_MAX_LEN = 100000L;
+
+    private final String TOPIC;
+    private final String group;
+    private final String consumer;
+    private final int count;
+    private final int maxRetries;
+    private final MqMetrics.TopicMetrics metrics;
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+    private volatile boolean started;
+    private volatile RedisRawConnection connection;
+    // 本消费者pending消息的读取位置，读完后置为null
+    private String pendingCursor = "0";
+    private long lastReclaimTime;
+
+    public RedisStreamConsumerHandler(String topic, String group, String consumer) {
+        this(topic, group, consumer, DEFAULT_COUNT, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * @param topic      stream
+     * @param group      消费组，不存在时创建，从创建之后的新消息开始消费
+     * @param consumer   消费者名称
+     * @param count      每次最多读取的消息数
+     * @param maxRetries 最大投递次数，超过后写入死信stream
+     */
+    public RedisStreamConsumerHandler(String topic, String group, String consumer, int count, int maxRetries) {
+        TOPIC = topic;
+        this.group = group;
+        this.consumer = consumer;
+        this.count = Math.max(1, count);
+        this.maxRetries = maxRetries;
+        this.metrics = MqMetrics.topic(topic);
+    }
+
+    public static String deadLetterKey(String topic) {
+        return topic + ":dead";
+    }
+
+    @Override
+    public <T extends ICallback> void consume(final T callback) {
+        started = true;
+        RedisDelayQueue.registerStream(TOPIC);
+        MqMetrics.watchStream(TOPIC);
+
+        try {
+            consumeLoop(callback);
+        } finally {
+            MqMetrics.unwatchStream(TOPIC);
+            RedisDelayQueue.unregisterStream(TOPIC);
+            terminated.countDown();
+        }
+    }
+
+    private void consumeLoop(ICallback callback) {
+        while (running) {
+            try {
+                if (Objects.isNull(connection)) {
+                    connection = RedisUtil.connectRaw();
+                    createGroup();
+                }
+
+                if (Objects.nonNull(pendingCursor)) {
+                    List<Entry> entries = readGroup(pendingCursor);
+                    pendingCursor = entries.isEmpty() ? null : entries.get(entries.size() - 1).id;
+                    handle(entries, callback);
+                    continue;
+                }
+
+                if (System.currentTimeMillis() - lastReclaimTime >= RECLAIM_INTERVAL) {
+                    lastReclaimTime = System.currentTimeMillis();
+                    reclaim(callback);
+                }
+
+                handle(readGroup(">"), callback);
+            } catch (JedisConnectionException e) {
+                if (!running) {
+                    break;
+                }
+                log.error("Consume redis stream message error, reconnect (Topic = {}).", TOPIC, e);
+                close(connection);
+                connection = null;
+                sleepQuietly(RECONNECT_INTERVAL);
+            } catch (Throwable t) {
+                log.error("Consume redis stream message error (Topic = {}).", TOPIC, t);
+                sleepQuietly(RECONNECT_INTERVAL);
+            }
+        }
+    }
+
+    private void createGroup() {
+        try {
+            connection.command("XGROUP", "CREATE", TOPIC, group, "$", "MKSTREAM");
+            log.info("Created redis stream consumer group {} (Topic = {}).", group, TOPIC);
+        } catch (JedisDataException e) {
+            if (!String.valueOf(e.getMessage()).startsWith("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param id ">"读取新消息；其他为读取本消费者id之后的pending消息
+     */
+    private List<Entry> readGroup(String id) {
+        long start = System.nanoTime();
+        try {
+            Object reply = ">".equals(id)
+                    ? connection.command("XREADGROUP", "GROUP", group, consumer, "COUNT", String.valueOf(count),
+                    "BLOCK", String.valueOf(BLOCK_MILLIS), "STREAMS", TOPIC, id)
+                    : connection.command("XREADGROUP", "GROUP", group, consumer, "COUNT", String.valueOf(count), "STREAMS", TOPIC, id);
+            if (Objects.isNull(reply)) {
+                return Collections.emptyList();
+            }
+
+            // [[stream, [[id, [field, value, ...]], ...]]]
+            List<Object> stream = asList(asList(reply).get(0));
+            return parseEntries(asList(stream.get(1)));
+        } finally {
+            RedisUtil.recordCommand("xreadgroup", start);
+        }
+    }
+
+    private void handle(List<Entry> entries, ICallback callback) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        List<String> ackIds = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (Objects.isNull(entry.data)) {
+                // 消息已被裁剪或删除，只剩pending记录
+                ackIds.add(entry.id);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                RedisMessageCodec.deliver(callback, entry.data);
+                success = true;
+                ackIds.add(entry.id);
+                if (log.isDebugEnabled() && metrics.sampleLog()) {
+                    log.debug("Consume redis stream message (Topic = {}), id: {}, bytes: {}", TOPIC, entry.id, entry.data.length);
+                }
+            } catch (Throwable t) {
+                log.error("Consume redis stream message error (Topic = {}), id: {}", TOPIC, entry.id, t);
+            } finally {
+                metrics.recordConsume(start, RedisMessageCodec.enqueueMillis(entry.data), success);
+            }
+        }
+        ack(ackIds);
+    }
+
+    private void ack(List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<String> args = new ArrayList<>(ids.size() + 3);
+            args.add("XACK");
+            args.add(TOPIC);
+            args.add(group);
+            args.addAll(ids);
+            connection.command(args.toArray(new String[0]));
+        } finally {
+            RedisUtil.recordCommand("xack", start);
+        }
+    }
+
+    /**
+     * 认领空闲超过MIN_IDLE的pending消息，超过最大投递次数的写入死信stream，其余重新处理
+     */
+    private void reclaim(ICallback callback) {
+        // [[id, consumer, idle, deliveries], ...]，按id从旧到新
+        List<Object> pending = asList(connection.command("XPENDING", TOPIC, group, "-", "+", String.valueOf(count)));
+
+        List<String> claimIds = new ArrayList<>();
+        List<String> deadIds = new ArrayList<>();
+        for (Object item : pending) {
+            List<Object> info = asList(item);
+            if ((Long) info.get(2) < MIN_IDLE) {
+                continue;
+            }
+            if ((Long) info.get(3) > maxRetries) {
+                deadIds.add(asString(info.get(0)));
+            } else {
+                claimIds.add(asString(info.get(0)));
+            }
+        }
+
+        if (!deadIds.isEmpty()) {
+            List<Entry> deadEntries = claim(deadIds);
+            for (Entry entry : deadEntries) {
+                if (Objects.nonNull(entry.data)) {
+                    connection.command(SafeEncoder.encode("XADD"), SafeEncoder.encode(deadLetterKey(TOPIC)), SafeEncoder.encode("MAXLEN"),
+                            SafeEncoder.encode("~"), SafeEncoder.encode(String.valueOf(DEAD_LETTER_MAX_LEN)), SafeEncoder.encode("*"),
+                            SafeEncoder.encode(RedisStreamProducerHandler.FIELD_DATA), entry.data);
+                    log.warn("Redis stream message exceeded max retries, moved to dead letter (Topic = {}), id: {}", TOPIC, entry.id);
+                }
+            }
+            ack(deadIds);
+        }
+        if (!claimIds.isEmpty()) {
+            handle(claim(claimIds), callback);
+        }
+    }
+
+    private List<Entry> claim(List<String> ids) {
+        List<String> args = new ArrayList<>(ids.size() + 5);
+        args.add("XCLAIM");
+        args.add(TOPIC);
+        args.add(group);
+        args.add(consumer);
+        args.add(String.valueOf(MIN_IDLE));
+        args.addAll(ids);
+        return parseEntries(asList(connection.command(args.toArray(new String[0]))));
+    }
+
+    private static List<Entry> parseEntries(List<Object> items) {
+        List<Entry> entries = new ArrayList<>(items.size());
+        for (Object item : items) {
+            if (Objects.isNull(item)) {
+                continue;
+            }
+
+            List<Object> entry = asList(item);
+            byte[] data = null;
+            if (Objects.nonNull(entry.get(1))) {
+                List<Object> fields = asList(entry.get(1));
+                for (int i = 0; i + 1 < fields.size(); i += 2) {
+                    if (RedisStreamProducerHandler.FIELD_DATA.equals(asString(fields.get(i)))) {
+                        data = (byte[]) fields.get(i + 1);
+                    }
+                }
+            }
+            entries.add(new Entry(asString(entry.get(0)), data));
+        }
+        return entries;
+    }
+
+    private static void close(RedisRawConnection connection) {
+        if (Objects.nonNull(connection)) {
+            connection.close();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止读取，等待当前批次处理完并确认后关闭连接；超时未确认的消息留在pending列表，由XCLAIM认领
+     */
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        try {
+            if (started && !terminated.await(timeout, unit)) {
+                log.warn("Shut down the redis stream consumer timeout (Topic = {}, Group = {}).", TOPIC, group);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        close(connection);
+        log.info("Shut down the redis stream consumer (Topic = {}, Group = {}).", TOPIC, group);
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final byte[] data;
+
+        Entry(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+}
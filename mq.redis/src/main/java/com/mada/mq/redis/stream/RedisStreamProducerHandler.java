@@ -0,0 +1,140 @@
+package com.mada.mq.redis.stream;
+
+import com.mada.mq.redis.RedisDelayQueue;
+import com.mada.mq.redis.RedisMessageCodec;
+import com.mada.mq.services.p2p.IProducerHandler;
+import com.mada.mq.utils.MqMetrics;
+import com.mada.mq.utils.RedisRawConnection;
+import com.mada.mq.utils.RedisUtil;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redis stream的生产者：XADD追加消息，MAXLEN ~近似裁剪，stream只保留最近maxLen条
+ * <p>
+ * 消息存放在字段data中，指定key时存放在字段key中；二进制消息带消息头，超过阈值时压缩，见RedisMessageCodec。
+ * 延时消息先放入{topic}:delayed，到期后由消费者端的搬运任务XADD到stream，见RedisDelayQueue。
+ * <p>
+ * Created by madali on 2020/7/20 11:03
+ */
+@Log4j2
+public class RedisStreamProducerHandler implements IProducerHandler {
+
+    public static final String FIELD_DATA = "data";
+    public static final String FIELD_KEY = "key";
+
+    private static final long DEFAULT_MAX_LEN = 1000000L;
+
+    private final String TOPIC;
+    private final long maxLen;
+    private final MqMetrics.TopicMetrics metrics;
+
+    private RedisRawConnection connection;
+
+    public RedisStreamProducerHandler(String topic) {
+        this(topic, DEFAULT_MAX_LEN);
+    }
+
+    /**
+     * @param topic  stream
+     * @param maxLen stream保留的最大消息数（近似值）
+     */
+    public RedisStreamProducerHandler(String topic, long maxLen) {
+        TOPIC = topic;
+        this.maxLen = maxLen;
+        this.metrics = MqMetrics.topic(topic);
+    }
+
+    @Override
+    public void produce(String message) {
+        produce(message, null);
+    }
+
+    @Override
+    public synchronized void produce(String message, String key) {
+        long start = System.nanoTime();
+        try {
+            if (Objects.isNull(connection)) {
+                connection = RedisUtil.connectRaw();
+            }
+
+            if (Objects.isNull(key)) {
+                connection.command("XADD", TOPIC, "MAXLEN", "~", String.valueOf(maxLen), "*", FIELD_DATA, message);
+            } else {
+                connection.command("XADD", TOPIC, "MAXLEN", "~", String.valueOf(maxLen), "*", FIELD_DATA, message, FIELD_KEY, key);
+            }
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis stream message (Topic = {}): {}", TOPIC, message);
+            }
+        } catch (JedisConnectionException e) {
+            log.error("Produce redis stream message error, reconnect.", e);
+            close(connection);
+            connection = null;
+        } catch (Throwable t) {
+            log.error("Produce redis stream message error.", t);
+        } finally {
+            RedisUtil.recordCommand("xadd", start);
+        }
+    }
+
+    @Override
+    public synchronized void produce(byte[] message) {
+        long start = System.nanoTime();
+        try {
+            if (Objects.isNull(connection)) {
+                connection = RedisUtil.connectRaw();
+            }
+
+            connection.command(SafeEncoder.encode("XADD"), SafeEncoder.encode(TOPIC), SafeEncoder.encode("MAXLEN"), SafeEncoder.encode("~"),
+                    SafeEncoder.encode(String.valueOf(maxLen)), SafeEncoder.encode("*"), SafeEncoder.encode(FIELD_DATA),
+                    RedisMessageCodec.encode(message));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis stream message (Topic = {}), bytes: {}", TOPIC, message.length);
+            }
+        } catch (JedisConnectionException e) {
+            log.error("Produce redis stream message error, reconnect.", e);
+            close(connection);
+            connection = null;
+        } catch (Throwable t) {
+            log.error("Produce redis stream message error.", t);
+        } finally {
+            RedisUtil.recordCommand("xadd", start);
+        }
+    }
+
+    @Override
+    public void produce(String message, long delay, TimeUnit unit) {
+        long start = System.nanoTime();
+        try (Jedis jedis = RedisUtil.connect()) {
+            RedisDelayQueue.add(jedis, TOPIC, message, System.currentTimeMillis() + unit.toMillis(delay));
+            metrics.recordProduce(1);
+            if (log.isDebugEnabled() && metrics.sampleLog()) {
+                log.debug("Produce redis stream delayed message (Topic = {}): {}, delay: {} {}", TOPIC, message, delay, unit);
+            }
+        } catch (Throwable t) {
+            log.error("Produce redis stream delayed message error.", t);
+        } finally {
+            RedisUtil.recordCommand("zadd", start);
+        }
+    }
+
+    private static void close(RedisRawConnection connection) {
+        if (Objects.nonNull(connection)) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        close(connection);
+        connection = null;
+        log.info("Close the redis stream producer (Topic = {}).", TOPIC);
+    }
+}
@@ -2,6 +2,8 @@ package com.mada.mq.services.p2p;
 
 import com.mada.mq.services.ICallback;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by madali on 2017/4/27.
  */
@@ -11,7 +13,7 @@ public interface IConsumerHandler {
     /**
      * 消费消息
      *
-     * @param callback
+     * @param callback 字符串消息用IRedisCallback，二进制消息用IRedisBytesCallback
      * @param <T>
      */
     <T extends ICallback> void consume(T callback);
@@ -21,6 +23,16 @@ public interface IConsumerHandler {
      */
     void shutdown();
 
+    /**
+     * 停止拉取新消息，等待处理中的消息完成（或放回队列）后关闭，最长等待timeout
+     *
+     * @param timeout
+     * @param unit
+     */
+    default void shutdown(long timeout, TimeUnit unit) {
+        shutdown();
+    }
+
     /**
      * 保存消费进度
      *
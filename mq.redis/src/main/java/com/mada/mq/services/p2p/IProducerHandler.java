@@ -1,5 +1,8 @@
 package com.mada.mq.services.p2p;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by madali on 2017/4/27.
  */
@@ -23,6 +26,33 @@ public interface IProducerHandler {
         this.produce(message);
     }
 
+    /**
+     * 生产二进制消息（带消息头，超过阈值时压缩）
+     *
+     * @param message
+     */
+    void produce(byte[] message);
+
+    /**
+     * 生产二进制消息，发送message中剩余的字节，不改变其position
+     *
+     * @param message
+     */
+    default void produce(ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        this.produce(bytes);
+    }
+
+    /**
+     * 生产延时消息，到期后才能被消费
+     *
+     * @param message
+     * @param delay
+     * @param unit
+     */
+    void produce(String message, long delay, TimeUnit unit);
+
     /**
      * 关闭生产
      */
@@ -1,5 +1,7 @@
 package com.mada.mq.services.pubsub;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by madali on 2017/4/27.
  */
@@ -23,6 +25,24 @@ public interface IPublisherHandler {
         this.publish(message);
     }
 
+    /**
+     * 发布二进制消息（带消息头，超过阈值时压缩）
+     *
+     * @param message
+     */
+    void publish(byte[] message);
+
+    /**
+     * 发布二进制消息，发送message中剩余的字节，不改变其position
+     *
+     * @param message
+     */
+    default void publish(ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        this.publish(bytes);
+    }
+
     /**
      * 关闭发布
      */
@@ -11,7 +11,7 @@ public interface ISubscriberHandler {
     /**
      * 订阅消息
      *
-     * @param callback
+     * @param callback 字符串消息用IRedisCallback，二进制消息用IRedisBytesCallback
      * @param <T>
      */
     <T extends ICallback> void subscribe(T callback);
@@ -0,0 +1,112 @@
+package com.mada.mq.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflater/Inflater对象池
+ * <p>
+ * Deflater/Inflater持有本地内存，每次new的分配和回收（依赖finalize）开销大；池中最多保留maxIdle个，用完reset后归还，超出的立即end释放。
+ * 与按线程复用相比，线程很多（如工作线程池）时本地内存总量有上限。
+ * <p>
+ * Created by madali on 2020/7/27 10:20
+ */
+public class DeflaterPool {
+
+    private static final int BUFFER = 1024;
+
+    private final int level;
+    private final int maxIdle;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleDeflaters = new AtomicInteger();
+    private final AtomicInteger idleInflaters = new AtomicInteger();
+
+    /**
+     * @param level   压缩级别：Deflater.BEST_SPEED ~ Deflater.BEST_COMPRESSION
+     * @param maxIdle 池中最多保留的对象数
+     */
+    public DeflaterPool(int level, int maxIdle) {
+        this.level = level;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * 压缩data[offset, offset+length)，结果写在prefix个字节之后
+     *
+     * @return 压缩结果（前prefix个字节留空），压缩后不小于原始数据时返回null
+     */
+    public byte[] compress(byte[] data, int offset, int length, int prefix) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            idleDeflaters.decrementAndGet();
+        }
+
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            // 输出上限为原始长度，超出即放弃压缩
+            byte[] output = new byte[prefix + length];
+            int written = prefix;
+            while (!deflater.finished() && written < output.length) {
+                written += deflater.deflate(output, written, output.length - written);
+            }
+            return deflater.finished() && written < output.length ? Arrays.copyOf(output, written) : null;
+        } finally {
+            deflater.reset();
+            if (idleDeflaters.incrementAndGet() <= maxIdle) {
+                deflaters.offer(deflater);
+            } else {
+                idleDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * 解压data[offset, data.length)
+     */
+    public byte[] decompress(byte[] data, int offset) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            idleInflaters.decrementAndGet();
+        }
+
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[BUFFER];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("解压失败,压缩数据被截断");
+                }
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("解压失败,压缩数据格式错误", e);
+        } finally {
+            inflater.reset();
+            if (idleInflaters.incrementAndGet() <= maxIdle) {
+                inflaters.offer(inflater);
+            } else {
+                idleInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.mada.mq.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁环形队列：多生产者、多消费者
+ * <p>
+ * 与MpscRingBuffer相同的序号槽位（Vyukov的有界队列），消费者也通过CAS抢占读取位置，适合多个消费者竞争同一个队列。
+ * 容量取不小于capacity的2的幂。offer满时立即返回false，poll空时立即返回null，阻塞与否由调用方决定。
+ * <p>
+ * Created by madali on 2020/7/28 10:12
+ */
+public class MpmcRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    public MpmcRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity超出范围:" + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E element) {
+        long index = producerIndex.get();
+        while (true) {
+            int offset = (int) (index & mask);
+            long diff = sequences.get(offset) - index;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(index, index + 1)) {
+                    elements.lazySet(offset, element);
+                    sequences.lazySet(offset, index + 1);
+                    return true;
+                }
+                index = producerIndex.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                index = producerIndex.get();
+            }
+        }
+    }
+
+    /**
+     * @return 队列为空时返回null
+     */
+    public E poll() {
+        long index = consumerIndex.get();
+        while (true) {
+            int offset = (int) (index & mask);
+            long diff = sequences.get(offset) - (index + 1);
+            if (diff == 0) {
+                if (consumerIndex.compareAndSet(index, index + 1)) {
+                    E element = elements.get(offset);
+                    elements.lazySet(offset, null);
+                    sequences.lazySet(offset, index + mask + 1);
+                    return element;
+                }
+                index = consumerIndex.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                index = consumerIndex.get();
+            }
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 近似值
+     */
+    public int size() {
+        return (int) Math.max(0L, Math.min(producerIndex.get() - consumerIndex.get(), mask + 1));
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.mada.mq.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁环形队列：多生产者、单消费者
+ * <p>
+ * 每个槽位带一个序号（Vyukov的有界队列）：生产者CAS抢占写入位置，写完后发布序号；消费者按序号判断槽位是否可读。
+ * 容量取不小于capacity的2的幂。offer满时立即返回false，poll空时立即返回null，阻塞与否由调用方决定。
+ * <p>
+ * Created by madali on 2020/7/21 10:18
+ */
+public class MpscRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    // 只有消费者线程读写
+    private long consumerIndex;
+
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity超出范围:" + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 可以由多个线程调用
+     *
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E element) {
+        long index = producerIndex.get();
+        while (true) {
+            int offset = (int) (index & mask);
+            long diff = sequences.get(offset) - index;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(index, index + 1)) {
+                    elements.lazySet(offset, element);
+                    sequences.lazySet(offset, index + 1);
+                    return true;
+                }
+                index = producerIndex.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                index = producerIndex.get();
+            }
+        }
+    }
+
+    /**
+     * 只能由一个线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    public E poll() {
+        int offset = (int) (consumerIndex & mask);
+        if (sequences.get(offset) != consumerIndex + 1) {
+            return null;
+        }
+
+        E element = elements.get(offset);
+        elements.lazySet(offset, null);
+        sequences.lazySet(offset, consumerIndex + mask + 1);
+        consumerIndex++;
+        return element;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 近似值
+     */
+    public int size() {
+        return (int) Math.max(0L, Math.min(producerIndex.get() - consumerIndex, mask + 1));
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.mada.mq.utils;
+
+import com.mada.common.redis.LatencyHistogram;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按topic统计的消息指标
+ * <p>
+ * 1.生产数、消费数、回调失败数，以及每个采样周期内的生产/消费速率（条/秒）。
+ * 2.回调耗时直方图；消息带入队时间时（二进制消息，见RedisMessageCodec）记录入队到回调完成的端到端延迟直方图。
+ * 3.消费者在consume期间登记队列，后台线程每个采样周期用一次pipeline LLEN所有登记的队列，记录队列长度（积压）；
+ * 登记的stream用XLEN，记录的是stream保留的消息数（受MAXLEN裁剪），不是消费组的积压。
+ * 4.逐条日志改为采样：每LOG_SAMPLE_RATE条消息最多输出一条debug日志。
+ * 5.记录时只做LongAdder自增，不加锁。
+ * <p>
+ * Created by madali on 2020/7/29 10:20
+ */
+@Log4j2
+public final class MqMetrics {
+
+    private static final long SAMPLE_INTERVAL = 5000L;  // 单位：毫秒
+    private static final int LOG_SAMPLE_RATE = 1000;
+    // jedis 2.9的pipeline没有XLEN，用脚本代替；按二进制调用，整数回复不会被转成字符串
+    private static final byte[] XLEN_SCRIPT = SafeEncoder.encode("return redis.call('xlen', KEYS[1])");
+
+    private static final Map<String, TopicMetrics> TOPICS = new ConcurrentHashMap<>();
+    // 需要采样队列长度的topic -> 登记次数
+    private static final Map<String, Integer> QUEUES = new ConcurrentHashMap<>();
+    // 需要采样长度的stream -> 登记次数
+    private static final Map<String, Integer> STREAMS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mq-metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SAMPLER.scheduleWithFixedDelay(MqMetrics::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private MqMetrics() {
+    }
+
+    public static TopicMetrics topic(String topic) {
+        return TOPICS.computeIfAbsent(topic, k -> new TopicMetrics());
+    }
+
+    /**
+     * 开始采样该队列的长度，可重复登记，每次登记需对应一次注销
+     */
+    public static void watchQueue(String topic) {
+        QUEUES.merge(topic, 1, Integer::sum);
+    }
+
+    public static void unwatchQueue(String topic) {
+        QUEUES.computeIfPresent(topic, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * 开始采样该stream的长度，可重复登记，每次登记需对应一次注销
+     */
+    public static void watchStream(String stream) {
+        STREAMS.merge(stream, 1, Integer::sum);
+    }
+
+    public static void unwatchStream(String stream) {
+        STREAMS.computeIfPresent(stream, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * 所有topic的指标及redis连接池指标
+     */
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> topics = new TreeMap<>();
+        TOPICS.forEach((topic, metrics) -> topics.put(topic, metrics.snapshot()));
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("topics", topics);
+        metrics.put("pool", RedisUtil.getPoolMetrics());
+        return metrics;
+    }
+
+    private static void sample() {
+        TOPICS.values().forEach(TopicMetrics::sampleRates);
+        if (QUEUES.isEmpty() && STREAMS.isEmpty()) {
+            return;
+        }
+
+        List<String> topics = new ArrayList<>(QUEUES.keySet());
+        List<String> streams = new ArrayList<>(STREAMS.keySet());
+        try (Jedis jedis = RedisUtil.connect()) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> lengths = new ArrayList<>(topics.size());
+            for (String topic : topics) {
+                lengths.add(pipeline.llen(topic));
+            }
+            List<Response<Object>> streamLengths = new ArrayList<>(streams.size());
+            for (String stream : streams) {
+                streamLengths.add(pipeline.eval(XLEN_SCRIPT, 1, SafeEncoder.encode(stream)));
+            }
+            pipeline.sync();
+
+            for (int i = 0; i < topics.size(); i++) {
+                topic(topics.get(i)).queueLength = lengths.get(i).get();
+            }
+            for (int i = 0; i < streams.size(); i++) {
+                topic(streams.get(i)).queueLength = (Long) streamLengths.get(i).get();
+            }
+        } catch (Throwable t) {
+            log.error("Sample redis queue length error.", t);
+        }
+    }
+
+    public static final class TopicMetrics {
+
+        private final LongAdder produced = new LongAdder();
+        private final LongAdder consumed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LatencyHistogram callbackLatency = new LatencyHistogram();
+        private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+        private final AtomicLong logCounter = new AtomicLong();
+
+        // 以下由采样线程写入
+        private volatile long queueLength = -1L;
+        private volatile double produceRate;
+        private volatile double consumeRate;
+        private long lastProduced;
+        private long lastConsumed;
+        private long lastSampleNanos = System.nanoTime();
+
+        private TopicMetrics() {
+        }
+
+        public void recordProduce(int count) {
+            produced.add(count);
+        }
+
+        /**
+         * @param startNanos    回调开始时间（System.nanoTime）
+         * @param enqueueMillis 消息入队时间（毫秒时间戳），未知时传-1
+         * @param success       回调是否成功
+         */
+        public void recordConsume(long startNanos, long enqueueMillis, boolean success) {
+            consumed.increment();
+            if (!success) {
+                failed.increment();
+            }
+            callbackLatency.recordNanos(System.nanoTime() - startNanos);
+            if (enqueueMillis > 0) {
+                endToEndLatency.recordNanos(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - enqueueMillis));
+            }
+        }
+
+        /**
+         * 是否输出本条消息的debug日志，每LOG_SAMPLE_RATE条返回一次true；应在log.isDebugEnabled()之后调用
+         */
+        public boolean sampleLog() {
+            return logCounter.getAndIncrement() % LOG_SAMPLE_RATE == 0;
+        }
+
+        private synchronized void sampleRates() {
+            long now = System.nanoTime();
+            long currentProduced = produced.sum();
+            long currentConsumed = consumed.sum();
+            double seconds = (now - lastSampleNanos) / 1_000_000_000D;
+            if (seconds > 0) {
+                produceRate = (currentProduced - lastProduced) / seconds;
+                consumeRate = (currentConsumed - lastConsumed) / seconds;
+            }
+            lastProduced = currentProduced;
+            lastConsumed = currentConsumed;
+            lastSampleNanos = now;
+        }
+
+        public Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("produced", produced.sum());
+            snapshot.put("consumed", consumed.sum());
+            snapshot.put("failed", failed.sum());
+            snapshot.put("produceRate", produceRate);
+            snapshot.put("consumeRate", consumeRate);
+            snapshot.put("queueLength", queueLength);
+            snapshot.put("callbackLatency", callbackLatency.snapshot());
+            snapshot.put("endToEndLatency", endToEndLatency.snapshot());
+            return snapshot;
+        }
+    }
+
+}
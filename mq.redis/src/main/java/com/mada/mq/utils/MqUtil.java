@@ -1,23 +1,46 @@
 package com.mada.mq.utils;
 
+import com.mada.mq.memory.InMemoryBroker;
+import com.mada.mq.memory.p2p.InMemoryConsumerHandler;
+import com.mada.mq.memory.p2p.InMemoryProducerHandler;
+import com.mada.mq.memory.pubsub.InMemoryPublisherHandler;
+import com.mada.mq.memory.pubsub.InMemorySubscriberHandler;
+import com.mada.mq.redis.p2p.RedisAsyncProducerHandler;
+import com.mada.mq.redis.p2p.RedisBatchConsumerHandler;
 import com.mada.mq.redis.p2p.RedisConsumerHandler;
 import com.mada.mq.redis.p2p.RedisProducerHandler;
+import com.mada.mq.redis.p2p.RedisReliableConsumerHandler;
+import com.mada.mq.redis.partition.RedisPartitionedConsumerHandler;
+import com.mada.mq.redis.partition.RedisPartitionedProducerHandler;
+import com.mada.mq.redis.pubsub.RedisAsyncSubscriberHandler;
 import com.mada.mq.redis.pubsub.RedisPublisherHandler;
 import com.mada.mq.redis.pubsub.RedisSubscriberHandler;
+import com.mada.mq.redis.stream.RedisStreamConsumerHandler;
+import com.mada.mq.redis.stream.RedisStreamProducerHandler;
 import com.mada.mq.services.p2p.IConsumerHandler;
 import com.mada.mq.services.p2p.IProducerHandler;
 import com.mada.mq.services.pubsub.IPublisherHandler;
 import com.mada.mq.services.pubsub.ISubscriberHandler;
+import lombok.extern.log4j.Log4j2;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Created by madali on 2017/4/27.
  */
+@Log4j2
 public class MqUtil {
 
+    private static final long DISCONNECT_TIMEOUT = 30000L;  // 单位：毫秒
+
     private static final List<IProducerHandler> PRODUCER_HANDLERS = Collections.synchronizedList(new LinkedList<>());
     private static final List<IConsumerHandler> CONSUMER_HANDLERS = Collections.synchronizedList(new LinkedList<>());
 
@@ -25,29 +48,196 @@ public class MqUtil {
     private static final List<ISubscriberHandler> SUBSCRIBER_HANDLERS = Collections.synchronizedList(new LinkedList<>());
 
     public static void disconnect() {
-        PRODUCER_HANDLERS.forEach(IProducerHandler::close);
-        CONSUMER_HANDLERS.forEach(IConsumerHandler::shutdown);
+        disconnect(DISCONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 并行关闭所有handler，最长等待timeout
+     * <p>
+     * 先停止消费者和订阅者（停止拉取，处理完或放回已取出的消息），再关闭生产者和发布者，回调中生产的消息也能发出。
+     *
+     * @return 所有handler都在timeout内关闭时返回true
+     */
+    public static boolean disconnect(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        List<Runnable> consumerTasks = new ArrayList<>();
+        synchronized (CONSUMER_HANDLERS) {
+            CONSUMER_HANDLERS.forEach(handler -> consumerTasks.add(() -> handler.shutdown(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)));
+        }
+        synchronized (SUBSCRIBER_HANDLERS) {
+            SUBSCRIBER_HANDLERS.forEach(handler -> consumerTasks.add(handler::shutdown));
+        }
+        boolean consumersClosed = runParallel(consumerTasks, deadline);
 
-        PUBLISHER_HANDLERS.forEach(IPublisherHandler::close);
-        SUBSCRIBER_HANDLERS.forEach(ISubscriberHandler::shutdown);
+        List<Runnable> producerTasks = new ArrayList<>();
+        synchronized (PRODUCER_HANDLERS) {
+            PRODUCER_HANDLERS.forEach(handler -> producerTasks.add(handler::close));
+        }
+        synchronized (PUBLISHER_HANDLERS) {
+            PUBLISHER_HANDLERS.forEach(handler -> producerTasks.add(handler::close));
+        }
+        boolean producersClosed = runParallel(producerTasks, deadline);
+
+        if (!consumersClosed || !producersClosed) {
+            log.warn("Disconnect mq handlers timeout, timeout: {} ms", unit.toMillis(timeout));
+        }
+        return consumersClosed && producersClosed;
+    }
+
+    private static boolean runParallel(List<Runnable> tasks, long deadline) {
+        if (tasks.isEmpty()) {
+            return true;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), r -> {
+            Thread thread = new Thread(r, "mq-disconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Runnable task : tasks) {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("Disconnect mq handler error.", t);
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            return executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     public static class Redis {
+        /**
+         * topic已通过Memory.bind改用进程内中转时，返回进程内的生产者（下同）
+         */
         public static IProducerHandler createProducerHandler(String topic) {
+            if (InMemoryBroker.isBound(topic)) {
+                return Memory.createProducerHandler(topic);
+            }
+
             IProducerHandler producerHandler = new RedisProducerHandler(topic);
             PRODUCER_HANDLERS.add(producerHandler);
 
             return producerHandler;
         }
 
+        /**
+         * 异步批量生产，见RedisAsyncProducerHandler
+         */
+        public static RedisAsyncProducerHandler createAsyncProducerHandler(String topic) {
+            RedisAsyncProducerHandler producerHandler = new RedisAsyncProducerHandler(topic);
+            PRODUCER_HANDLERS.add(producerHandler);
+
+            return producerHandler;
+        }
+
         public static IConsumerHandler createConsumerHandler(String topic) {
+            if (InMemoryBroker.isBound(topic)) {
+                return Memory.createConsumerHandler(topic);
+            }
+
             IConsumerHandler consumerHandler = new RedisConsumerHandler(topic);
             CONSUMER_HANDLERS.add(consumerHandler);
 
             return consumerHandler;
         }
 
+        /**
+         * 批量消费，见RedisBatchConsumerHandler
+         *
+         * @param topic         队列
+         * @param batchSize     每批最多取出的消息数
+         * @param workerThreads 执行回调的线程数
+         * @param keyExtractor  从消息中提取顺序key，同一个key的消息按顺序执行；为空时不保证顺序
+         */
+        public static IConsumerHandler createBatchConsumerHandler(String topic, int batchSize, int workerThreads, Function<String, String> keyExtractor) {
+            IConsumerHandler consumerHandler = new RedisBatchConsumerHandler(topic, batchSize, workerThreads, keyExtractor);
+            CONSUMER_HANDLERS.add(consumerHandler);
+
+            return consumerHandler;
+        }
+
+        /**
+         * 可靠消费（至少一次），见RedisReliableConsumerHandler
+         *
+         * @param topic        队列
+         * @param maxRetries   最大重试次数，超过后移入死信列表
+         * @param ackBatchSize 批量确认的消息数
+         */
+        public static IConsumerHandler createReliableConsumerHandler(String topic, int maxRetries, int ackBatchSize) {
+            IConsumerHandler consumerHandler = new RedisReliableConsumerHandler(topic, maxRetries, ackBatchSize);
+            CONSUMER_HANDLERS.add(consumerHandler);
+
+            return consumerHandler;
+        }
+
+        /**
+         * 基于redis stream的生产者，见RedisStreamProducerHandler
+         *
+         * @param topic  stream
+         * @param maxLen stream保留的最大消息数（近似值）
+         */
+        public static IProducerHandler createStreamProducerHandler(String topic, long maxLen) {
+            IProducerHandler producerHandler = new RedisStreamProducerHandler(topic, maxLen);
+            PRODUCER_HANDLERS.add(producerHandler);
+
+            return producerHandler;
+        }
+
+        /**
+         * 基于redis stream消费组的消费者，见RedisStreamConsumerHandler
+         *
+         * @param topic    stream
+         * @param group    消费组
+         * @param consumer 消费者名称，需固定（如主机名）
+         */
+        public static IConsumerHandler createStreamConsumerHandler(String topic, String group, String consumer) {
+            IConsumerHandler consumerHandler = new RedisStreamConsumerHandler(topic, group, consumer);
+            CONSUMER_HANDLERS.add(consumerHandler);
+
+            return consumerHandler;
+        }
+
+        /**
+         * 分区topic的生产者，按消息key选择分区，见RedisPartitionedProducerHandler
+         *
+         * @param topic      topic
+         * @param partitions 分区数
+         */
+        public static IProducerHandler createPartitionedProducerHandler(String topic, int partitions) {
+            IProducerHandler producerHandler = new RedisPartitionedProducerHandler(topic, partitions);
+            PRODUCER_HANDLERS.add(producerHandler);
+
+            return producerHandler;
+        }
+
+        /**
+         * 分区topic的消费者，消费组内通过redis租约分配分区，见RedisPartitionedConsumerHandler
+         *
+         * @param topic      topic
+         * @param group      消费组
+         * @param partitions 分区数，需与生产者一致
+         */
+        public static IConsumerHandler createPartitionedConsumerHandler(String topic, String group, int partitions) {
+            IConsumerHandler consumerHandler = new RedisPartitionedConsumerHandler(topic, group, partitions);
+            CONSUMER_HANDLERS.add(consumerHandler);
+
+            return consumerHandler;
+        }
+
         public static IPublisherHandler createPublisherHandler(String topic) {
+            if (InMemoryBroker.isBound(topic)) {
+                return Memory.createPublisherHandler(topic);
+            }
+
             IPublisherHandler publisherHandler = new RedisPublisherHandler(topic);
             PUBLISHER_HANDLERS.add(publisherHandler);
 
@@ -55,10 +245,78 @@ public class MqUtil {
         }
 
         public static ISubscriberHandler createSubscriberHandler(String topic) {
+            if (InMemoryBroker.isBound(topic)) {
+                return Memory.createSubscriberHandler(topic);
+            }
+
             ISubscriberHandler subscriberHandler = new RedisSubscriberHandler(topic);
             SUBSCRIBER_HANDLERS.add(subscriberHandler);
 
             return subscriberHandler;
         }
+
+        /**
+         * 异步订阅，回调在工作线程池中执行，见RedisAsyncSubscriberHandler
+         *
+         * @param channels      订阅的频道
+         * @param patterns      订阅的模式，如news.*
+         * @param workerThreads 执行回调的线程数
+         * @param queueCapacity 每个频道的队列容量
+         */
+        public static RedisAsyncSubscriberHandler createAsyncSubscriberHandler(Collection<String> channels, Collection<String> patterns,
+                                                                               int workerThreads, int queueCapacity) {
+            RedisAsyncSubscriberHandler subscriberHandler = new RedisAsyncSubscriberHandler(channels, patterns, workerThreads, queueCapacity);
+            SUBSCRIBER_HANDLERS.add(subscriberHandler);
+
+            return subscriberHandler;
+        }
+    }
+    /**
+     * 进程内中转，同一个JVM中的生产者和消费者不经过redis，见InMemoryBroker
+     */
+    public static class Memory {
+        /**
+         * 之后通过Redis.createProducerHandler/createConsumerHandler/createPublisherHandler/createSubscriberHandler
+         * 创建的该topic的handler都改用进程内中转，需在创建handler之前调用
+         */
+        public static void bind(String... topics) {
+            for (String topic : topics) {
+                InMemoryBroker.bind(topic);
+            }
+        }
+
+        public static void unbind(String... topics) {
+            for (String topic : topics) {
+                InMemoryBroker.unbind(topic);
+            }
+        }
+
+        public static IProducerHandler createProducerHandler(String topic) {
+            IProducerHandler producerHandler = new InMemoryProducerHandler(topic);
+            PRODUCER_HANDLERS.add(producerHandler);
+
+            return producerHandler;
+        }
+
+        public static IConsumerHandler createConsumerHandler(String topic) {
+            IConsumerHandler consumerHandler = new InMemoryConsumerHandler(topic);
+            CONSUMER_HANDLERS.add(consumerHandler);
+
+            return consumerHandler;
+        }
+
+        public static IPublisherHandler createPublisherHandler(String topic) {
+            IPublisherHandler publisherHandler = new InMemoryPublisherHandler(topic);
+            PUBLISHER_HANDLERS.add(publisherHandler);
+
+            return publisherHandler;
+        }
+
+        public static ISubscriberHandler createSubscriberHandler(String topic) {
+            ISubscriberHandler subscriberHandler = new InMemorySubscriberHandler(topic);
+            SUBSCRIBER_HANDLERS.add(subscriberHandler);
+
+            return subscriberHandler;
+        }
     }
 }
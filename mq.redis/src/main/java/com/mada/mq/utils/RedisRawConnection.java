@@ -0,0 +1,101 @@
+package com.mada.mq.utils;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.RedisInputStream;
+import redis.clients.util.RedisOutputStream;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 发送任意命令的redis连接：jedis 2.9没有的命令（XADD、XREADGROUP等stream命令）通过它发送
+ * <p>
+ * 按RESP协议写命令，回复用jedis的Protocol.read解析：状态/字符串为byte[]，整数为Long，数组为List，nil为null，错误回复抛JedisDataException。
+ * 非线程安全，一个连接同一时间只能由一个线程使用。
+ * <p>
+ * Created by madali on 2020/7/20 10:12
+ */
+public class RedisRawConnection implements Closeable {
+
+    private final Socket socket;
+    private final RedisOutputStream outputStream;
+    private final RedisInputStream inputStream;
+
+    /**
+     * @param timeout 连接和读超时，单位：毫秒。阻塞命令的阻塞时间需小于该值
+     */
+    public RedisRawConnection(String host, int port, int timeout, String password) {
+        try {
+            socket = new Socket();
+            socket.setReuseAddress(true);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            outputStream = new RedisOutputStream(socket.getOutputStream());
+            inputStream = new RedisInputStream(socket.getInputStream());
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+
+        if (Objects.nonNull(password) && !password.isEmpty()) {
+            command("AUTH", password);
+        }
+    }
+
+    public Object command(String... args) {
+        byte[][] raw = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            raw[i] = SafeEncoder.encode(args[i]);
+        }
+        return command(raw);
+    }
+
+    /**
+     * 按二进制发送参数，用于二进制消息
+     */
+    public Object command(byte[]... args) {
+        try {
+            outputStream.write(Protocol.ASTERISK_BYTE);
+            outputStream.writeIntCrLf(args.length);
+            for (byte[] raw : args) {
+                outputStream.write(Protocol.DOLLAR_BYTE);
+                outputStream.writeIntCrLf(raw.length);
+                outputStream.write(raw);
+                outputStream.writeCrLf();
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+        return Protocol.read(inputStream);
+    }
+
+    /**
+     * 回复中的字符串（byte[]）转为String，其他类型原样返回
+     */
+    public static String asString(Object reply) {
+        return reply instanceof byte[] ? SafeEncoder.encode((byte[]) reply) : Objects.toString(reply, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Object> asList(Object reply) {
+        return (List<Object>) reply;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
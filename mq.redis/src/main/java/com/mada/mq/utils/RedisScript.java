@@ -0,0 +1,54 @@
+package com.mada.mq.utils;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.List;
+
+/**
+ * lua脚本：首次执行时加载，之后用evalsha只发送sha1，redis重启或script flush后自动重新加载
+ * <p>
+ * Created by madali on 2020/7/17 10:26
+ */
+public class RedisScript {
+
+    private final String script;
+    private volatile String sha;
+
+    public RedisScript(String script) {
+        this.script = script;
+    }
+
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        String currentSha = sha;
+        if (currentSha == null) {
+            currentSha = sha = jedis.scriptLoad(script);
+        }
+
+        try {
+            return jedis.evalsha(currentSha, keys, args);
+        } catch (JedisNoScriptException e) {
+            sha = jedis.scriptLoad(script);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * 按二进制传参，字符串回复为byte[]，用于二进制消息
+     */
+    public Object evalBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        String currentSha = sha;
+        if (currentSha == null) {
+            currentSha = sha = jedis.scriptLoad(script);
+        }
+
+        try {
+            return jedis.evalsha(SafeEncoder.encode(currentSha), keys, args);
+        } catch (JedisNoScriptException e) {
+            sha = jedis.scriptLoad(script);
+            return jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+        }
+    }
+
+}
@@ -1,9 +1,10 @@
 package com.mada.mq.utils;
 
+import com.mada.common.redis.InstrumentedJedisPool;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -11,7 +12,7 @@ import java.util.Objects;
  */
 public class RedisUtil {
 
-    private static final JedisPool jedisPool;
+    private static final InstrumentedJedisPool jedisPool;
 
     // Redis 服务器ip（如果是集群，此处需配置多个） port 密码
     private static final String IP = "127.0.0.1";
@@ -39,14 +40,40 @@ public class RedisUtil {
         jedisPoolConfig.setBlockWhenExhausted(true);
         // 设置的逐出策略类名, 默认DefaultEvictionPolicy(当连接超过最大空闲时间,或连接数超过最大空闲连接数)
         jedisPoolConfig.setEvictionPolicyClassName("org.apache.commons.pool2.impl.DefaultEvictionPolicy");
+        // -Dredis.pool.mode=adaptive时改为后台校验空闲连接，见InstrumentedJedisPool
+        InstrumentedJedisPool.applyMode(jedisPoolConfig);
 
-        jedisPool = new JedisPool(jedisPoolConfig, IP, PORT, TIMEOUT, PASSWORD);
+        jedisPool = new InstrumentedJedisPool(jedisPoolConfig, IP, PORT, TIMEOUT, PASSWORD);
     }
 
     public static Jedis connect() {
         return jedisPool.getResource();
     }
 
+    /**
+     * 不经过连接池的连接，用于发送jedis不支持的命令，见RedisRawConnection
+     */
+    public static RedisRawConnection connectRaw() {
+        return new RedisRawConnection(IP, PORT, TIMEOUT, PASSWORD);
+    }
+
+    /**
+     * 记录一条命令的耗时
+     *
+     * @param command   命令类型：lpush、publish...
+     * @param startNano 开始时间：System.nanoTime()
+     */
+    public static void recordCommand(String command, long startNano) {
+        jedisPool.recordCommand(command, startNano);
+    }
+
+    /**
+     * 连接池运行指标：活跃/空闲连接数，借连接等待耗时直方图，各命令耗时直方图
+     */
+    public static Map<String, Object> getPoolMetrics() {
+        return jedisPool.getMetrics();
+    }
+
     public static void disConnect(Jedis jedis) {
         if (Objects.nonNull(jedis)) {
             jedis.close();
@@ -10,6 +10,15 @@ public interface DsLock extends Lock, AutoCloseable{
 
     boolean isOwner();
 
+    /**
+     * 获取fencing token：同一个锁的token随每次获得锁单调递增，下游据此拒绝已失去锁的旧持有者的写入
+     *
+     * @return token，不支持或当前线程未持有锁时返回-1
+     */
+    default long getFencingToken() {
+        return -1L;
+    }
+
     @Override
     @SuppressWarnings("all")
     default Condition newCondition() {
@@ -0,0 +1,42 @@
+package com.mada.utils.dslock.contract;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式限流器：集群内共享同一个令牌桶，用法与guava的RateLimiter一致
+ * <p>
+ * Created by madali on 2020/7/14 10:12
+ */
+public interface DsRateLimiter {
+
+    /**
+     * 每秒生成的令牌数
+     */
+    double getRate();
+
+    /**
+     * 以阻塞的方式获取令牌
+     *
+     * @return 等待的时间，单位：秒
+     */
+    double acquire(int permits);
+
+    /**
+     * 非阻塞式，获取不到立即返回
+     */
+    boolean tryAcquire(int permits);
+
+    /**
+     * 最大等待timeout的时间，timeout为0时等同于非阻塞
+     */
+    boolean tryAcquire(int permits, long timeout, TimeUnit timeUnit);
+
+    default double acquire() {
+        return acquire(1);
+    }
+
+    default boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+}
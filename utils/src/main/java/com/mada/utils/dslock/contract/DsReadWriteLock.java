@@ -0,0 +1,18 @@
+package com.mada.utils.dslock.contract;
+
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * 分布式读写锁：读锁之间共享，写锁与读锁、写锁之间互斥
+ * <p>
+ * Created by madali on 2020/7/14 10:05
+ */
+public interface DsReadWriteLock extends ReadWriteLock {
+
+    @Override
+    DsLock readLock();
+
+    @Override
+    DsLock writeLock();
+
+}
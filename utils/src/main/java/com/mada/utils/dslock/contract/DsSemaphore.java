@@ -0,0 +1,50 @@
+package com.mada.utils.dslock.contract;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式信号量：集群内共享同一组许可
+ * <p>
+ * Created by madali on 2020/7/14 10:08
+ */
+public interface DsSemaphore {
+
+    /**
+     * 许可不存在时初始化许可数量，已存在时不做任何操作
+     *
+     * @return 是否初始化成功
+     */
+    boolean trySetPermits(int permits);
+
+    /**
+     * 阻塞式获取许可，可以被打断
+     */
+    void acquire(int permits) throws InterruptedException;
+
+    /**
+     * 非阻塞式，立刻返回结果
+     */
+    boolean tryAcquire(int permits);
+
+    /**
+     * 最大等待time的时间
+     */
+    boolean tryAcquire(int permits, long time, TimeUnit timeUnit) throws InterruptedException;
+
+    void release(int permits);
+
+    int availablePermits();
+
+    default void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    default boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    default void release() {
+        release(1);
+    }
+
+}
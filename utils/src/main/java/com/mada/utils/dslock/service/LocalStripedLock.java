@@ -0,0 +1,314 @@
+package com.mada.utils.dslock.service;
+
+import com.mada.utils.dslock.contract.DsLock;
+import lombok.extern.log4j.Log4j2;
+import org.redisson.api.RedissonClient;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 先本地加锁再加redis锁的分布式锁
+ * <p>
+ * 1.同一个JVM中争抢同一个key的线程先在本地的公平锁上排队，每个JVM只有一个线程去redis加锁，redis的加锁请求数降低为原来的1/本地并发数。
+ * 2.释放时若本地还有线程在排队，redis锁不释放，直接交给下一个本地线程（省掉一次解锁和一次加锁）；
+ * 连续交接maxHandoffs次后释放一次redis锁，让其他JVM有机会获得锁。
+ * 3.redis锁的持有者是本JVM的一个固定标识而不是某个线程，所以可以在线程之间交接。
+ * 每次交接前重置租期并确认仍持有，未开启续期时每个线程的持有时间不能超过租期；持有时间较长时建议开启续期（watchdog）。
+ * 4.本地锁按(RedissonClient, lockKey)区分，不同key之间互不影响；同一个client同一个key的实例在redis中是同一个持有者，租期必须一致。
+ * <p>
+ * Created by madali on 2020/7/13 15:20
+ */
+@Log4j2
+public class LocalStripedLock implements DsLock, AutoCloseable {
+
+    // redis锁的固定持有者标识，真实线程id均为正数，不会冲突
+    private static final long SHARED_OWNER_THREAD_ID = -1L;
+    // 默认连续交接次数上限
+    private static final int DEFAULT_MAX_HANDOFFS = 16;
+
+    // 按(RedissonClient, lockKey)区分：不同client的实例在redis中是不同的持有者，各自加锁，不共用distributedHeld
+    private static final Map<StateKey, KeyState> STATES = new ConcurrentHashMap<>();
+
+    private final String lockKey;
+    private final StateKey stateKey;
+    private final long leaseTime;
+    private final RedisLock delegate;
+    private final int maxHandoffs;
+
+    public LocalStripedLock(String lockKey, long leaseTime, RedissonClient redissonClient, boolean watchdog) {
+        this(lockKey, leaseTime, redissonClient, watchdog, DEFAULT_MAX_HANDOFFS);
+    }
+
+    /**
+     * @param lockKey        key
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     * @param watchdog       是否在持有期间自动续期
+     * @param maxHandoffs    不释放redis锁、直接交给本地下一个线程的连续次数上限
+     */
+    public LocalStripedLock(String lockKey, long leaseTime, RedissonClient redissonClient, boolean watchdog, int maxHandoffs) {
+        this.lockKey = lockKey;
+        this.stateKey = new StateKey(redissonClient, lockKey);
+        this.leaseTime = leaseTime;
+        this.maxHandoffs = maxHandoffs;
+        this.delegate = new RedisLock(lockKey, leaseTime, redissonClient, watchdog);
+        this.delegate.ownerThreadId = SHARED_OWNER_THREAD_ID;
+    }
+
+    @Override
+    public void lock() {
+        KeyState state = retain();
+        state.local.lock();
+        try {
+            acquireDistributed(state);
+        } catch (RuntimeException e) {
+            state.local.unlock();
+            release(state);
+            throw e;
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        KeyState state = retain();
+        try {
+            state.local.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(state);
+            throw e;
+        }
+
+        try {
+            if (!state.distributedHeld) {
+                delegate.lockInterruptibly();
+                state.distributedHeld = true;
+                state.handoffs = 0;
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            state.local.unlock();
+            releaseOrphan(state);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        KeyState state = retain();
+        if (!state.local.tryLock()) {
+            release(state);
+            return false;
+        }
+
+        boolean locked = false;
+        try {
+            locked = state.distributedHeld || tryAcquireDistributed(state, -1, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!locked) {
+                state.local.unlock();
+                releaseOrphan(state);
+            }
+        }
+        return locked;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(Math.max(0L, time));
+
+        KeyState state = retain();
+        boolean localLocked;
+        try {
+            localLocked = state.local.tryLock(time, timeUnit);
+        } catch (InterruptedException e) {
+            releaseOrphan(state);
+            throw e;
+        }
+        if (!localLocked) {
+            releaseOrphan(state);
+            return false;
+        }
+
+        boolean locked = false;
+        try {
+            locked = state.distributedHeld
+                    || tryAcquireDistributed(state, Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!locked) {
+                state.local.unlock();
+                releaseOrphan(state);
+            }
+        }
+        return locked;
+    }
+
+    @Override
+    public void unlock() {
+        KeyState state = STATES.get(stateKey);
+        if (state == null || !state.local.isHeldByCurrentThread()) {
+            log.warn("本地锁不由当前线程持有,忽略解锁.lockKey:{}", lockKey);
+            return;
+        }
+
+        boolean handedOff = false;
+        try {
+            if (state.local.getHoldCount() == 1 && state.distributedHeld) {
+                if (state.local.hasQueuedThreads() && state.handoffs < maxHandoffs) {
+                    // 直接交给本地下一个线程，不释放redis锁；交接前重置租期，锁已丢失时下一个线程重新加锁
+                    state.handoffs++;
+                    handedOff = true;
+                    if (!delegate.renew()) {
+                        log.warn("交接时redis锁已过期或不再由本JVM持有,由下一个线程重新加锁.lockKey:{}", lockKey);
+                        state.distributedHeld = false;
+                    }
+                } else {
+                    state.distributedHeld = false;
+                    delegate.unlock();
+                }
+            }
+        } finally {
+            state.local.unlock();
+            try {
+                if (handedOff) {
+                    // 排队的线程可能在交接判断之后超时离开，它的releaseOrphan因本线程仍持有本地锁而失败，这里补一次释放
+                    releaseIfIdle(state);
+                }
+            } finally {
+                release(state);
+            }
+        }
+    }
+
+    @Override
+    public boolean isOwner() {
+        KeyState state = STATES.get(stateKey);
+        return state != null && state.local.isHeldByCurrentThread() && state.distributedHeld;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return isOwner() ? delegate.getFencingToken() : -1L;
+    }
+
+    @Override
+    public void close() {
+        unlock();
+    }
+
+    private void acquireDistributed(KeyState state) {
+        if (!state.distributedHeld) {
+            delegate.lock();
+            state.distributedHeld = true;
+            state.handoffs = 0;
+        }
+    }
+
+    private boolean tryAcquireDistributed(KeyState state, long time, TimeUnit timeUnit) throws InterruptedException {
+        if (delegate.tryLock(time, timeUnit)) {
+            state.distributedHeld = true;
+            state.handoffs = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 放弃等待后调用：交接时以为有人排队，但排队的线程超时或被打断离开，redis锁会无人释放，这里补一次释放
+     */
+    private void releaseOrphan(KeyState state) {
+        try {
+            releaseIfIdle(state);
+        } finally {
+            release(state);
+        }
+    }
+
+    /**
+     * 本地锁空闲且无人排队时释放redis锁。本地锁被占用时由占用者负责：它解锁时或交接后会再检查一次
+     */
+    private void releaseIfIdle(KeyState state) {
+        // tryLock会插队，有人排队时不抢
+        if (state.local.hasQueuedThreads() || !state.local.tryLock()) {
+            return;
+        }
+
+        try {
+            if (state.local.getHoldCount() == 1 && state.distributedHeld && !state.local.hasQueuedThreads()) {
+                state.distributedHeld = false;
+                delegate.unlock();
+            }
+        } finally {
+            state.local.unlock();
+        }
+    }
+
+    private KeyState retain() {
+        return STATES.compute(stateKey, (k, state) -> {
+            if (state == null) {
+                state = new KeyState(leaseTime);
+            } else if (state.leaseTime != leaseTime) {
+                // 共用一把redis锁和distributedHeld，租期以先加锁的实例为准会让另一个实例的租期失效
+                throw new IllegalArgumentException("同一个lockKey的LocalStripedLock租期不一致.lockKey:" + lockKey
+                        + ",leaseTime:" + leaseTime + ",使用中的leaseTime:" + state.leaseTime);
+            }
+            state.refCount++;
+            return state;
+        });
+    }
+
+    private void release(KeyState state) {
+        STATES.computeIfPresent(stateKey, (k, current) -> {
+            if (current != state) {
+                return current;
+            }
+            return --current.refCount > 0 ? current : null;
+        });
+    }
+
+    private static final class StateKey {
+        private final RedissonClient redissonClient;
+        private final String lockKey;
+
+        StateKey(RedissonClient redissonClient, String lockKey) {
+            this.redissonClient = redissonClient;
+            this.lockKey = lockKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StateKey)) {
+                return false;
+            }
+            StateKey that = (StateKey) o;
+            return redissonClient == that.redissonClient && lockKey.equals(that.lockKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(redissonClient) + lockKey.hashCode();
+        }
+    }
+
+    private static final class KeyState {
+        // 公平锁：交接顺序与排队顺序一致
+        private final ReentrantLock local = new ReentrantLock(true);
+        private final long leaseTime;
+        // 只在STATES.compute中修改
+        private int refCount;
+        // 以下字段只在持有local时读写
+        private boolean distributedHeld;
+        private int handoffs;
+
+        KeyState(long leaseTime) {
+            this.leaseTime = leaseTime;
+        }
+    }
+
+}
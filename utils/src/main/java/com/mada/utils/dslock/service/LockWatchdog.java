@@ -0,0 +1,186 @@
+package com.mada.utils.dslock.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.redisson.Redisson;
+import org.redisson.api.BatchResult;
+import org.redisson.api.RBatch;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 锁续期看门狗
+ * <p>
+ * 1.所有开启续期的锁共用一个调度线程，不会每个锁一个线程/定时器。
+ * 2.每个周期把到期需要续期的锁按RedissonClient分组，同一个client的续期脚本放在一个batch中，一次网络往返完成。
+ * 3.续期脚本先校验持有者再pexpire，锁已过期或被他人持有时不会续期，并把该锁移出看门狗。
+ * <p>
+ * Created by madali on 2020/7/9 10:30
+ */
+@Log4j2
+final class LockWatchdog {
+
+    // 调度周期，单位：毫秒。租期的1/3到期后续期，租期不宜小于调度周期的3倍
+    private static final long TICK_INTERVAL = 100L;
+
+    // KEYS[1]=锁key，ARGV[1]=租期（毫秒），ARGV[2]=持有者（redisson格式：clientId:threadId）
+    static final String RENEW_SCRIPT =
+            "if (redis.call('hexists', KEYS[1], ARGV[2]) == 1) then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[1]); " +
+                    "return 1; " +
+                    "end; " +
+                    "return 0;";
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dslock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<EntryKey, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    static {
+        SCHEDULER.scheduleWithFixedDelay(LockWatchdog::renewDueEntries, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private LockWatchdog() {
+    }
+
+    /**
+     * redisson中锁的持有者标识：clientId:threadId
+     */
+    static String lockOwner(RedissonClient redissonClient, long threadId) {
+        if (!(redissonClient instanceof Redisson)) {
+            throw new IllegalArgumentException("不支持的RedissonClient实现:" + redissonClient.getClass().getName());
+        }
+        return ((Redisson) redissonClient).getConnectionManager().getId() + ":" + threadId;
+    }
+
+    /**
+     * 加锁成功后登记续期，可重入，每次登记需对应一次注销
+     */
+    static void register(RedissonClient redissonClient, String lockKey, String owner, long leaseTime) {
+        ENTRIES.compute(new EntryKey(redissonClient, lockKey, owner), (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry(leaseTime);
+            }
+            entry.holdCount++;
+            return entry;
+        });
+    }
+
+    /**
+     * 解锁时注销续期，登记次数归零后不再续期
+     */
+    static void unregister(RedissonClient redissonClient, String lockKey, String owner) {
+        ENTRIES.computeIfPresent(new EntryKey(redissonClient, lockKey, owner), (k, entry) -> --entry.holdCount > 0 ? entry : null);
+    }
+
+    private static void renewDueEntries() {
+        try {
+            long now = System.currentTimeMillis();
+
+            Map<RedissonClient, List<EntryKey>> dueEntries = new HashMap<>();
+            ENTRIES.forEach((key, entry) -> {
+                if (now - entry.lastRenewTime >= entry.leaseTime / 3) {
+                    dueEntries.computeIfAbsent(key.redissonClient, k -> new ArrayList<>()).add(key);
+                }
+            });
+
+            dueEntries.forEach(LockWatchdog::renew);
+        } catch (Throwable t) {
+            log.error("锁续期异常.", t);
+        }
+    }
+
+    private static void renew(RedissonClient redissonClient, List<EntryKey> dueKeys) {
+        // 收集后已注销的锁跳过：unlock先注销再解锁，此时锁仍被持有，不能以0租期续期（pexpire 0会直接删除锁且不通知等待者）
+        List<EntryKey> keys = new ArrayList<>(dueKeys.size());
+        // 与keys一一对应，处理结果时只处理发出续期时的那次登记
+        List<Entry> entries = new ArrayList<>(dueKeys.size());
+        RBatch batch = redissonClient.createBatch();
+        RScript script = batch.getScript(StringCodec.INSTANCE);
+        for (EntryKey key : dueKeys) {
+            Entry entry = ENTRIES.get(key);
+            if (Objects.isNull(entry)) {
+                continue;
+            }
+            keys.add(key);
+            entries.add(entry);
+            script.evalAsync(RScript.Mode.READ_WRITE, RENEW_SCRIPT, RScript.ReturnType.BOOLEAN,
+                    Collections.singletonList(key.lockKey), String.valueOf(entry.leaseTime), key.owner);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        long renewTime = System.currentTimeMillis();
+        BatchResult<?> result;
+        try {
+            result = batch.execute();
+        } catch (Exception e) {
+            // 本周期续期失败，下个周期重试，租期内恢复则不影响持有
+            log.warn("锁续期失败,数量:{}.cause:{}", keys.size(), e.getMessage());
+            return;
+        }
+
+        List<?> responses = result.getResponses();
+        for (int i = 0; i < keys.size(); i++) {
+            EntryKey key = keys.get(i);
+            Entry entry = entries.get(i);
+            if (Boolean.TRUE.equals(responses.get(i))) {
+                entry.lastRenewTime = renewTime;
+            } else if (ENTRIES.remove(key, entry)) {
+                // 续期期间同一持有者重新登记的是新的Entry，不会被移除
+                log.warn("锁已过期或不再由当前持有者持有,停止续期.lockKey:{},owner:{}", key.lockKey, key.owner);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final long leaseTime;
+        private volatile long lastRenewTime = System.currentTimeMillis();
+        // 只在ENTRIES.compute中修改
+        private int holdCount;
+
+        Entry(long leaseTime) {
+            this.leaseTime = leaseTime;
+        }
+    }
+
+    private static final class EntryKey {
+        private final RedissonClient redissonClient;
+        private final String lockKey;
+        private final String owner;
+
+        EntryKey(RedissonClient redissonClient, String lockKey, String owner) {
+            this.redissonClient = redissonClient;
+            this.lockKey = lockKey;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey that = (EntryKey) o;
+            return redissonClient == that.redissonClient && lockKey.equals(that.lockKey) && owner.equals(that.owner);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(redissonClient) + lockKey.hashCode()) + owner.hashCode();
+        }
+    }
+
+}
@@ -1,20 +1,41 @@
 package com.mada.utils.dslock.service;
 
 import com.mada.utils.dslock.contract.DsLock;
+import lombok.extern.log4j.Log4j2;
+import org.redisson.api.RFuture;
 import org.redisson.api.RLock;
+import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by madali on 2019/10/24 14:17
  */
+@Log4j2
 public class RedisLock implements DsLock, AutoCloseable {
 
+    // 锁的fencing token计数器key后缀
+    private static final String FENCING_KEY_SUFFIX = ":fencing";
+
+    // KEYS[1]=锁key，KEYS[2]=fencing计数器key，ARGV[1]=持有者。仍持有锁时自增并返回token，否则返回-1
+    private static final String FENCING_SCRIPT =
+            "if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then " +
+                    "return redis.call('incr', KEYS[2]); " +
+                    "end; " +
+                    "return -1;";
+
     private RedissonClient redissonClient;
     String lockKey;
     RLock rLock;
     long leaseTime;
+    // 是否由看门狗自动续期
+    boolean watchdog;
+    // 固定的持有者线程id，为null时持有者为当前线程。用于本地多个线程之间交接锁，见LocalStripedLock
+    Long ownerThreadId;
 
     RedisLock() {
     }
@@ -25,9 +46,20 @@ public class RedisLock implements DsLock, AutoCloseable {
      * @param redissonClient redis client
      */
     public RedisLock(String lockKey, long leaseTime, RedissonClient redissonClient) {
+        this(lockKey, leaseTime, redissonClient, false);
+    }
+
+    /**
+     * @param lockKey        key
+     * @param leaseTime      锁的持续时间, 毫秒时间戳。开启续期时为每次续期的时长，可以设得较短，持有者宕机后锁能尽快释放
+     * @param redissonClient redis client
+     * @param watchdog       是否在持有期间自动续期，直到unlock
+     */
+    public RedisLock(String lockKey, long leaseTime, RedissonClient redissonClient, boolean watchdog) {
         this.lockKey = lockKey;
         this.leaseTime = leaseTime;
         this.redissonClient = redissonClient;
+        this.watchdog = watchdog;
     }
 
     private RLock getLock() {
@@ -46,7 +78,12 @@ public class RedisLock implements DsLock, AutoCloseable {
      */
     @Override
     public void lock() {
-        getLock().lock(leaseTime, TimeUnit.MILLISECONDS);
+        if (ownerThreadId == null) {
+            getLock().lock(leaseTime, TimeUnit.MILLISECONDS);
+        } else {
+            getLock().lockAsync(leaseTime, TimeUnit.MILLISECONDS, ownerThreadId).syncUninterruptibly();
+        }
+        onLocked();
     }
 
     /**
@@ -56,7 +93,25 @@ public class RedisLock implements DsLock, AutoCloseable {
      */
     @Override
     public void lockInterruptibly() throws InterruptedException {
-        getLock().lockInterruptibly(leaseTime, TimeUnit.MILLISECONDS);
+        if (ownerThreadId == null) {
+            getLock().lockInterruptibly(leaseTime, TimeUnit.MILLISECONDS);
+        } else {
+            RFuture<Void> future = getLock().lockAsync(leaseTime, TimeUnit.MILLISECONDS, ownerThreadId);
+            try {
+                future.sync();
+            } catch (InterruptedException e) {
+                // 异步加锁不会因打断而停止，之后成功时已无人持有，加锁完成后立即释放
+                long threadId = ownerThreadId;
+                future.cancel(false);
+                future.onComplete((result, cause) -> {
+                    if (cause == null) {
+                        getLock().unlockAsync(threadId);
+                    }
+                });
+                throw e;
+            }
+        }
+        onLocked();
     }
 
     /**
@@ -80,17 +135,75 @@ public class RedisLock implements DsLock, AutoCloseable {
      */
     @Override
     public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
-        return getLock().tryLock(time, leaseTime, timeUnit);
+        // leaseTime的单位固定为毫秒，等待时间统一换算成毫秒
+        long waitTime = time < 0 ? -1 : timeUnit.toMillis(time);
+        boolean locked = ownerThreadId == null
+                ? getLock().tryLock(waitTime, leaseTime, TimeUnit.MILLISECONDS)
+                : getLock().tryLockAsync(waitTime, leaseTime, TimeUnit.MILLISECONDS, ownerThreadId).sync().getNow();
+        if (locked) {
+            onLocked();
+        }
+        return locked;
     }
 
+    /**
+     * 释放当前线程持有的锁。锁已过期或由他人持有时不做任何操作，不会误删他人的锁
+     */
     @Override
     public void unlock() {
-        getLock().forceUnlock();
+        if (watchdog) {
+            LockWatchdog.unregister(redissonClient, lockKey, owner());
+        }
+
+        try {
+            if (ownerThreadId == null) {
+                getLock().unlock();
+            } else {
+                getLock().unlockAsync(ownerThreadId).syncUninterruptibly();
+            }
+        } catch (IllegalMonitorStateException e) {
+            log.warn("锁已过期或不由当前线程持有,忽略解锁.lockKey:{}", lockKey);
+        }
+    }
+
+    /**
+     * 不校验持有者，强制释放锁（运维处理死锁时使用）
+     *
+     * @return 锁是否存在并被释放
+     */
+    public boolean forceUnlock() {
+        return getLock().forceUnlock();
+    }
+
+    /**
+     * 获取fencing token：同一个lockKey的token随每次获得锁单调递增
+     * <p>
+     * 下游写入时带上token，并拒绝小于已见过的最大token的写入，锁过期后仍在写入的旧持有者会被拒绝。
+     * 需在持有锁期间调用，每次调用都会生成新token，一次持有期间只需调用一次。
+     *
+     * @return token，当前线程（或固定的持有者）未持有锁时返回-1
+     */
+    @Override
+    public long getFencingToken() {
+        Long token = redissonClient.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, FENCING_SCRIPT, RScript.ReturnType.INTEGER,
+                Arrays.asList(lockKey, lockKey + FENCING_KEY_SUFFIX), owner());
+        return token;
+    }
+
+    /**
+     * 仍持有锁时把租期重置为leaseTime
+     *
+     * @return 锁已过期或由他人持有时返回false
+     */
+    boolean renew() {
+        Boolean renewed = redissonClient.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, LockWatchdog.RENEW_SCRIPT, RScript.ReturnType.BOOLEAN,
+                Collections.singletonList(lockKey), String.valueOf(leaseTime), owner());
+        return Boolean.TRUE.equals(renewed);
     }
 
     @Override
     public boolean isOwner() {
-        return getLock().isHeldByCurrentThread();
+        return ownerThreadId == null ? getLock().isHeldByCurrentThread() : getLock().isHeldByThread(ownerThreadId);
     }
 
     @Override
@@ -98,4 +211,21 @@ public class RedisLock implements DsLock, AutoCloseable {
         unlock();
     }
 
+    private void onLocked() {
+        if (watchdog) {
+            LockWatchdog.register(redissonClient, lockKey, owner(), leaseTime);
+        }
+    }
+
+    private long ownerId() {
+        return ownerThreadId == null ? Thread.currentThread().getId() : ownerThreadId;
+    }
+
+    /**
+     * 锁在redis中的持有者标识，与rLock的实现一致
+     */
+    String owner() {
+        return LockWatchdog.lockOwner(redissonClient, ownerId());
+    }
+
 }
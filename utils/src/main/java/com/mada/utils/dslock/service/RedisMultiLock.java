@@ -0,0 +1,286 @@
+package com.mada.utils.dslock.service;
+
+import com.mada.utils.dslock.contract.DsLock;
+import com.mada.utils.dslock.contract.DsLockWorker;
+import lombok.extern.log4j.Log4j2;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个key的分布式锁：一次lua脚本同时获取所有key的锁，要么全部成功，要么全部不加锁
+ * <p>
+ * 1.key去重后按字典序排列，加锁顺序固定，多个key互相等待不会死锁；一次网络往返完成，不用逐个加锁。
+ * 2.每个key的锁与RedisLock（redisson的RLock）格式一致：单个key的RedisLock与包含该key的RedisMultiLock互斥，同一线程可重入。
+ * 3.DsLockWorker的回调对整组key只触发一次：onStart开始获取，onWaiting首次需要等待，onActive获取成功，onRelease释放后。
+ * 4.等待期间按被占用key的剩余时间轮询重试（最长间隔100ms），不订阅解锁消息。
+ * 5.redis集群模式下所有key需在同一个slot（使用{hash tag}）。
+ * <p>
+ * Created by madali on 2020/7/15 11:02
+ */
+@Log4j2
+public class RedisMultiLock implements DsLock, AutoCloseable {
+
+    // 等待时的最大重试间隔，单位：毫秒
+    private static final long MAX_RETRY_INTERVAL = 100L;
+    // redisson解锁消息
+    private static final String UNLOCK_MESSAGE = "0";
+
+    // KEYS=锁key，ARGV[1]=租期（毫秒），ARGV[2]=持有者。全部获取成功返回nil，否则返回被占用key的剩余时间
+    private static final String ACQUIRE_SCRIPT =
+            "for i = 1, #KEYS do " +
+                    "if (redis.call('exists', KEYS[i]) == 1) and (redis.call('hexists', KEYS[i], ARGV[2]) == 0) then " +
+                    "return redis.call('pttl', KEYS[i]); " +
+                    "end; " +
+                    "end; " +
+                    "for i = 1, #KEYS do " +
+                    "redis.call('hincrby', KEYS[i], ARGV[2], 1); " +
+                    "redis.call('pexpire', KEYS[i], ARGV[1]); " +
+                    "end; " +
+                    "return nil;";
+
+    // KEYS=锁key，ARGV[1]=租期（毫秒），ARGV[2]=持有者，ARGV[2+i]=KEYS[i]的解锁消息频道。返回释放的key数量，重入时只减少计数
+    private static final String RELEASE_SCRIPT =
+            "local released = 0; " +
+                    "for i = 1, #KEYS do " +
+                    "if (redis.call('hexists', KEYS[i], ARGV[2]) == 1) then " +
+                    "if (redis.call('hincrby', KEYS[i], ARGV[2], -1) > 0) then " +
+                    "redis.call('pexpire', KEYS[i], ARGV[1]); " +
+                    "else " +
+                    "redis.call('del', KEYS[i]); " +
+                    "redis.call('publish', ARGV[2 + i], '" + UNLOCK_MESSAGE + "'); " +
+                    "released = released + 1; " +
+                    "end; " +
+                    "end; " +
+                    "end; " +
+                    "return released;";
+
+    // KEYS=锁key，ARGV[1]=持有者。全部持有返回1
+    private static final String OWNER_SCRIPT =
+            "for i = 1, #KEYS do " +
+                    "if (redis.call('hexists', KEYS[i], ARGV[1]) == 0) then " +
+                    "return 0; " +
+                    "end; " +
+                    "end; " +
+                    "return 1;";
+
+    private final RedissonClient redissonClient;
+    private final List<Object> lockKeys;
+    private final long leaseTime;
+    private final boolean watchdog;
+    private final DsLockWorker worker;
+
+    /**
+     * @param lockKeys       key集合
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     */
+    public RedisMultiLock(Collection<String> lockKeys, long leaseTime, RedissonClient redissonClient) {
+        this(lockKeys, leaseTime, redissonClient, false, null);
+    }
+
+    /**
+     * @param lockKeys       key集合
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     * @param watchdog       是否在持有期间自动续期，直到unlock
+     * @param worker         加锁、解锁回调，可以为空
+     */
+    public RedisMultiLock(Collection<String> lockKeys, long leaseTime, RedissonClient redissonClient, boolean watchdog, DsLockWorker worker) {
+        if (Objects.isNull(lockKeys) || lockKeys.isEmpty()) {
+            throw new IllegalArgumentException("lockKeys为空.");
+        }
+
+        this.lockKeys = new ArrayList<>(new TreeSet<>(lockKeys));
+        this.leaseTime = leaseTime;
+        this.redissonClient = redissonClient;
+        this.watchdog = watchdog;
+        this.worker = worker;
+    }
+
+    /**
+     * 阻塞式获取所有key的锁，成功后返回，可用于try-with-resources
+     *
+     * @param lockKeys       key集合
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     * @return 已持有的锁
+     */
+    public static DsLock lockAll(Collection<String> lockKeys, long leaseTime, RedissonClient redissonClient) {
+        return lockAll(lockKeys, leaseTime, redissonClient, false, null);
+    }
+
+    /**
+     * 阻塞式获取所有key的锁，成功后返回，可用于try-with-resources
+     *
+     * @param lockKeys       key集合
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     * @param watchdog       是否在持有期间自动续期，直到unlock
+     * @param worker         加锁、解锁回调，可以为空
+     * @return 已持有的锁
+     */
+    public static DsLock lockAll(Collection<String> lockKeys, long leaseTime, RedissonClient redissonClient, boolean watchdog, DsLockWorker worker) {
+        DsLock lock = new RedisMultiLock(lockKeys, leaseTime, redissonClient, watchdog, worker);
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * 阻塞式获取锁，无法被打断
+     */
+    @Override
+    public void lock() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                acquire(-1L);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 阻塞式获取锁，可以被打断
+     *
+     * @throws InterruptedException exp
+     */
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        acquire(-1L);
+    }
+
+    /**
+     * 非阻塞式，立刻返回结果
+     *
+     * @return 是否成功
+     */
+    @Override
+    public boolean tryLock() {
+        try {
+            return acquire(0L);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 最大等待time的时间
+     *
+     * @return 是否成功
+     */
+    @Override
+    public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
+        return acquire(time < 0 ? 0L : timeUnit.toMillis(time));
+    }
+
+    /**
+     * 释放当前线程持有的所有key的锁。已过期或由他人持有的key不做任何操作
+     */
+    @Override
+    public void unlock() {
+        String owner = LockWatchdog.lockOwner(redissonClient, Thread.currentThread().getId());
+        if (watchdog) {
+            for (Object lockKey : lockKeys) {
+                LockWatchdog.unregister(redissonClient, (String) lockKey, owner);
+            }
+        }
+
+        Object[] args = new Object[2 + lockKeys.size()];
+        args[0] = String.valueOf(leaseTime);
+        args[1] = owner;
+        for (int i = 0; i < lockKeys.size(); i++) {
+            args[2 + i] = unlockChannel((String) lockKeys.get(i));
+        }
+
+        Long released = redissonClient.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, RELEASE_SCRIPT, RScript.ReturnType.INTEGER,
+                lockKeys, args);
+        if (released != lockKeys.size()) {
+            log.debug("部分锁已过期、由他人持有或仍被重入持有.lockKeys:{},released:{}", lockKeys, released);
+        }
+
+        // 全部过期或仍被重入持有时没有释放任何锁，不触发回调
+        if (Objects.nonNull(worker) && released > 0) {
+            worker.onRelease();
+        }
+    }
+
+    @Override
+    public boolean isOwner() {
+        String owner = LockWatchdog.lockOwner(redissonClient, Thread.currentThread().getId());
+        return redissonClient.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_ONLY, OWNER_SCRIPT, RScript.ReturnType.BOOLEAN,
+                lockKeys, owner);
+    }
+
+    @Override
+    public void close() {
+        unlock();
+    }
+
+    /**
+     * @param waitTime 最大等待时间，单位：毫秒，小于0时一直等待
+     */
+    private boolean acquire(long waitTime) throws InterruptedException {
+        String owner = LockWatchdog.lockOwner(redissonClient, Thread.currentThread().getId());
+        long deadline = System.currentTimeMillis() + waitTime;
+        boolean waiting = false;
+
+        if (Objects.nonNull(worker)) {
+            worker.onStart();
+        }
+
+        while (true) {
+            Long ttl = redissonClient.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, ACQUIRE_SCRIPT, RScript.ReturnType.INTEGER,
+                    lockKeys, String.valueOf(leaseTime), owner);
+            if (Objects.isNull(ttl)) {
+                onLocked(owner);
+                return true;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (waitTime >= 0 && remaining <= 0) {
+                return false;
+            }
+
+            if (!waiting) {
+                waiting = true;
+                if (Objects.nonNull(worker)) {
+                    worker.onWaiting();
+                }
+            }
+
+            // 按被占用key的剩余时间重试，加随机值避免多个等待者同时重试
+            long interval = ttl > 0 ? Math.min(ttl, MAX_RETRY_INTERVAL) : MAX_RETRY_INTERVAL;
+            interval = interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+            Thread.sleep(waitTime >= 0 ? Math.min(interval, remaining) : interval);
+        }
+    }
+
+    private void onLocked(String owner) {
+        if (watchdog) {
+            for (Object lockKey : lockKeys) {
+                LockWatchdog.register(redissonClient, (String) lockKey, owner, leaseTime);
+            }
+        }
+        if (Objects.nonNull(worker)) {
+            worker.onActive();
+        }
+    }
+
+    /**
+     * 与redisson的RLock一致的解锁消息频道，唤醒等待该key的RedisLock
+     */
+    private static String unlockChannel(String lockKey) {
+        return lockKey.contains("{") ? "redisson_lock__channel:" + lockKey : "redisson_lock__channel:{" + lockKey + "}";
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.mada.utils.dslock.service;
+
+import com.mada.utils.dslock.contract.DsRateLimiter;
+import lombok.extern.log4j.Log4j2;
+import org.redisson.api.RRateLimiter;
+import org.redisson.api.RateIntervalUnit;
+import org.redisson.api.RateLimiterConfig;
+import org.redisson.api.RateType;
+import org.redisson.api.RedissonClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redisson限流器的分布式令牌桶，每次获取令牌为一次lua脚本调用
+ * <p>
+ * 1.集群内所有节点共享同一个速率，与guava的RateLimiter一样最多允许1秒的突发。
+ * 2.redisson的速率以"时间窗口内的整数个令牌"表示：每秒不少于1个令牌时取误差小于1%的最小整数秒作为窗口
+ * （如1.5/s按3个/2s），窗口大于1秒时允许的突发也相应变大；否则按产生1个令牌的时长作为窗口。
+ * 3.速率在key不存在时初始化，已存在时以redis中的为准，修改速率需先删除key。
+ * <p>
+ * Created by madali on 2020/7/14 10:48
+ */
+@Log4j2
+public class RedisRateLimiter implements DsRateLimiter {
+
+    private static final double MAX_RATE_ERROR = 0.01D;
+    // 每秒不少于1个令牌时，50秒的窗口取整误差不超过1%
+    private static final int MAX_WINDOW_SECONDS = 50;
+
+    private final RRateLimiter rateLimiter;
+
+    /**
+     * @param limiterKey       key
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param redissonClient   redis client
+     */
+    public RedisRateLimiter(String limiterKey, double permitsPerSecond, RedissonClient redissonClient) {
+        if (!(permitsPerSecond > 0D)) {
+            throw new IllegalArgumentException("permitsPerSecond必须大于0:" + permitsPerSecond);
+        }
+
+        long rate;
+        long rateInterval;
+        if (permitsPerSecond >= 1D) {
+            int seconds = 1;
+            while (seconds < MAX_WINDOW_SECONDS
+                    && Math.abs(Math.round(permitsPerSecond * seconds) - permitsPerSecond * seconds) >= MAX_RATE_ERROR * permitsPerSecond * seconds) {
+                seconds++;
+            }
+            rate = Math.round(permitsPerSecond * seconds);
+            rateInterval = seconds * 1000L;
+        } else {
+            rate = 1L;
+            rateInterval = Math.round(1000D / permitsPerSecond);
+        }
+
+        this.rateLimiter = redissonClient.getRateLimiter(limiterKey);
+        if (!rateLimiter.trySetRate(RateType.OVERALL, rate, rateInterval, RateIntervalUnit.MILLISECONDS)) {
+            RateLimiterConfig config = rateLimiter.getConfig();
+            if (config.getRate() != rate || config.getRateInterval() != rateInterval) {
+                log.warn("限流器已存在且速率不同,以redis中的为准.key:{},rate:{}/{}ms,expect:{}/{}ms",
+                        limiterKey, config.getRate(), config.getRateInterval(), rate, rateInterval);
+            }
+        }
+    }
+
+    @Override
+    public double getRate() {
+        RateLimiterConfig config = rateLimiter.getConfig();
+        return config.getRate() * 1000D / config.getRateInterval();
+    }
+
+    /**
+     * @return 等待的时间（含网络往返），单位：秒
+     */
+    @Override
+    public double acquire(int permits) {
+        long start = System.nanoTime();
+        rateLimiter.acquire(permits);
+        return (System.nanoTime() - start) / 1_000_000_000D;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        return rateLimiter.tryAcquire(permits);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long timeout, TimeUnit timeUnit) {
+        return timeout <= 0 ? rateLimiter.tryAcquire(permits) : rateLimiter.tryAcquire(permits, timeout, timeUnit);
+    }
+
+}
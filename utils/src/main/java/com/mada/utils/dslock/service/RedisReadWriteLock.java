@@ -0,0 +1,83 @@
+package com.mada.utils.dslock.service;
+
+import com.mada.utils.dslock.contract.DsLock;
+import com.mada.utils.dslock.contract.DsReadWriteLock;
+import org.redisson.api.RLock;
+import org.redisson.api.RReadWriteLock;
+import org.redisson.api.RedissonClient;
+
+/**
+ * 基于redisson读写锁的分布式读写锁，加锁、解锁均为一次lua脚本调用
+ * <p>
+ * 1.读锁之间不互斥，不同节点的读请求可以并行；写锁与读锁、写锁之间互斥。
+ * 2.持有写锁的线程可以再获取读锁（锁降级），反之不行。
+ * 3.只有写锁支持续期和fencing token：读锁由多个持有者共享，token没有意义，读锁持有时间不应超过leaseTime。
+ * <p>
+ * Created by madali on 2020/7/14 10:20
+ */
+public class RedisReadWriteLock implements DsReadWriteLock {
+
+    private final DsLock readLock;
+    private final DsLock writeLock;
+
+    /**
+     * @param lockKey        key
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     */
+    public RedisReadWriteLock(String lockKey, long leaseTime, RedissonClient redissonClient) {
+        this(lockKey, leaseTime, redissonClient, false);
+    }
+
+    /**
+     * @param lockKey        key
+     * @param leaseTime      锁的持续时间, 毫秒时间戳
+     * @param redissonClient redis client
+     * @param watchdog       写锁是否在持有期间自动续期，直到unlock
+     */
+    public RedisReadWriteLock(String lockKey, long leaseTime, RedissonClient redissonClient, boolean watchdog) {
+        RReadWriteLock readWriteLock = redissonClient.getReadWriteLock(lockKey);
+        this.readLock = new ReadLock(lockKey, leaseTime, redissonClient, readWriteLock.readLock());
+        this.writeLock = new WriteLock(lockKey, leaseTime, redissonClient, watchdog, readWriteLock.writeLock());
+    }
+
+    @Override
+    public DsLock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public DsLock writeLock() {
+        return writeLock;
+    }
+
+    private static final class ReadLock extends RedisLock {
+
+        ReadLock(String lockKey, long leaseTime, RedissonClient redissonClient, RLock rLock) {
+            super(lockKey, leaseTime, redissonClient, false);
+            this.rLock = rLock;
+        }
+
+        @Override
+        public long getFencingToken() {
+            return -1L;
+        }
+    }
+
+    private static final class WriteLock extends RedisLock {
+
+        WriteLock(String lockKey, long leaseTime, RedissonClient redissonClient, boolean watchdog, RLock rLock) {
+            super(lockKey, leaseTime, redissonClient, watchdog);
+            this.rLock = rLock;
+        }
+
+        /**
+         * redisson写锁的持有者标识带:write后缀
+         */
+        @Override
+        String owner() {
+            return super.owner() + ":write";
+        }
+    }
+
+}
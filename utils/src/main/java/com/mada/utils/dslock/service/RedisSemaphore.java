@@ -0,0 +1,60 @@
+package com.mada.utils.dslock.service;
+
+import com.mada.utils.dslock.contract.DsSemaphore;
+import org.redisson.api.RSemaphore;
+import org.redisson.api.RedissonClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redisson信号量的分布式信号量，获取、释放许可均为一次lua脚本调用
+ * <p>
+ * 许可不绑定持有者、没有过期时间：获取许可后节点宕机，许可不会自动归还，需在finally中release。
+ * <p>
+ * Created by madali on 2020/7/14 10:35
+ */
+public class RedisSemaphore implements DsSemaphore {
+
+    private final RSemaphore semaphore;
+
+    /**
+     * @param semaphoreKey   key
+     * @param permits        许可数量，key不存在时初始化，已存在时以redis中的为准
+     * @param redissonClient redis client
+     */
+    public RedisSemaphore(String semaphoreKey, int permits, RedissonClient redissonClient) {
+        this.semaphore = redissonClient.getSemaphore(semaphoreKey);
+        this.semaphore.trySetPermits(permits);
+    }
+
+    @Override
+    public boolean trySetPermits(int permits) {
+        return semaphore.trySetPermits(permits);
+    }
+
+    @Override
+    public void acquire(int permits) throws InterruptedException {
+        semaphore.acquire(permits);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        return semaphore.tryAcquire(permits);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long time, TimeUnit timeUnit) throws InterruptedException {
+        return semaphore.tryAcquire(permits, time, timeUnit);
+    }
+
+    @Override
+    public void release(int permits) {
+        semaphore.release(permits);
+    }
+
+    @Override
+    public int availablePermits() {
+        return semaphore.availablePermits();
+    }
+
+}
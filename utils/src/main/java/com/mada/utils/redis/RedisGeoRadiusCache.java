@@ -0,0 +1,147 @@
+package com.mada.utils.redis;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import redis.clients.jedis.GeoCoordinate;
+import redis.clients.jedis.GeoRadiusResponse;
+import redis.clients.jedis.GeoUnit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * georadius结果的本地短期缓存
+ * <p>
+ * 1.查询中心点按网格分桶（类似geohash前缀），同一个桶内的查询共用一次redis查询结果。
+ * 2.缓存的是以桶中心为圆心、半径扩大半个桶对角线的查询结果（带坐标），它一定包含桶内任意中心点的查询结果；
+ * 命中后按实际中心点重新计算距离、过滤、排序并截取count，结果与直接查询redis一致（不超过ttl的延迟）。
+ * <p>
+ * Created by madali on 2020/7/6 17:12
+ */
+class RedisGeoRadiusCache {
+
+    // 与redis geo计算距离使用的地球半径一致，单位：米
+    private static final double EARTH_RADIUS_IN_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = 111320D;
+    // redis geo允许的坐标范围，超出时GEORADIUS报错
+    private static final double MAX_LONGITUDE = 180D;
+    private static final double MAX_LATITUDE = 85.05112878D;
+
+    private final double bucketDegrees;
+    private final Cache<BucketKey, List<GeoRadiusResponse>> cache;
+
+    /**
+     * @param bucketMeters 分桶大小（米），越大共用率越高，但每次回源查询的范围越大
+     * @param ttl          缓存时间
+     * @param timeUnit     缓存时间单位
+     * @param maximumSize  缓存的桶数量上限
+     */
+    RedisGeoRadiusCache(double bucketMeters, long ttl, TimeUnit timeUnit, long maximumSize) {
+        this.bucketDegrees = bucketMeters / METERS_PER_DEGREE;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, timeUnit)
+                .build();
+    }
+
+    /**
+     * @param key        redis的key
+     * @param coordinate 实际查询中心点
+     * @param radius     半径
+     * @param unit       半径单位
+     * @param count      返回数量上限，小于等于0表示不限制
+     * @param loader     回源查询：参数为桶中心点和扩大后的半径（米），需返回带坐标的结果
+     * @return 从近到远排序，带距离和坐标
+     */
+    List<GeoRadiusResponse> get(String key, GeoCoordinate coordinate, double radius, GeoUnit unit, int count,
+                                Function<BucketQuery, List<GeoRadiusResponse>> loader) {
+        long lonIndex = (long) Math.floor(coordinate.getLongitude() / bucketDegrees);
+        long latIndex = (long) Math.floor(coordinate.getLatitude() / bucketDegrees);
+        double radiusMeters = radius * toMeters(unit);
+
+        BucketKey bucketKey = new BucketKey(key, lonIndex, latIndex, radiusMeters);
+        List<GeoRadiusResponse> candidates = cache.get(bucketKey, k -> {
+            // 边界上的桶裁剪到redis geo的合法范围内，中心点取裁剪后的中点
+            double minLon = clamp(lonIndex * bucketDegrees, MAX_LONGITUDE);
+            double maxLon = clamp((lonIndex + 1) * bucketDegrees, MAX_LONGITUDE);
+            double minLat = clamp(latIndex * bucketDegrees, MAX_LATITUDE);
+            double maxLat = clamp((latIndex + 1) * bucketDegrees, MAX_LATITUDE);
+            GeoCoordinate center = new GeoCoordinate((minLon + maxLon) / 2, (minLat + maxLat) / 2);
+            // 离赤道较近的一侧角点离中心最远；裁剪后不再对称，四个角点都算取最大值
+            double halfDiagonal = Math.max(
+                    Math.max(distanceMeters(center, new GeoCoordinate(minLon, minLat)), distanceMeters(center, new GeoCoordinate(maxLon, minLat))),
+                    Math.max(distanceMeters(center, new GeoCoordinate(minLon, maxLat)), distanceMeters(center, new GeoCoordinate(maxLon, maxLat))));
+            return loader.apply(new BucketQuery(center, radiusMeters + halfDiagonal));
+        });
+
+        List<GeoRadiusResponse> result = new ArrayList<>();
+        for (GeoRadiusResponse candidate : candidates) {
+            double distance = distanceMeters(coordinate, candidate.getCoordinate());
+            if (distance <= radiusMeters) {
+                GeoRadiusResponse response = new GeoRadiusResponse(candidate.getMember());
+                response.setCoordinate(candidate.getCoordinate());
+                response.setDistance(distance / toMeters(unit));
+                result.add(response);
+            }
+        }
+        result.sort(Comparator.comparingDouble(GeoRadiusResponse::getDistance));
+
+        return count > 0 && result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    private static double clamp(double degrees, double max) {
+        return Math.max(-max, Math.min(max, degrees));
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 与redis一致的haversine距离，单位：米
+     */
+    static double distanceMeters(GeoCoordinate from, GeoCoordinate to) {
+        double lat1 = Math.toRadians(from.getLatitude());
+        double lat2 = Math.toRadians(to.getLatitude());
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(to.getLongitude() - from.getLongitude()) / 2);
+        return 2.0D * EARTH_RADIUS_IN_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    static double toMeters(GeoUnit unit) {
+        switch (unit) {
+            case KM:
+                return 1000D;
+            case MI:
+                return 1609.34D;
+            case FT:
+                return 0.3048D;
+            default:
+                return 1D;
+        }
+    }
+
+    /**
+     * 回源查询参数：桶中心点 + 扩大后的半径（米）
+     */
+    @AllArgsConstructor
+    static final class BucketQuery {
+        final GeoCoordinate center;
+        final double radiusMeters;
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class BucketKey {
+        private final String key;
+        private final long lonIndex;
+        private final long latIndex;
+        private final double radiusMeters;
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.mada.utils.redis;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.extern.log4j.Log4j2;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * RedisUtil的本地一级缓存（near cache）
+ * <p>
+ * 1.基于Caffeine，按数量上限和写入后过期时间淘汰。
+ * 2.setObject/deleteObject时通过redis频道广播失效消息，所有JVM收到后剔除本地缓存中的key。
+ * 3.订阅连接断开重连后，期间的失效消息可能已丢失，此时清空整个本地缓存。
+ * <p>
+ * 失效消息格式：实例id|发送时间戳(毫秒)|key
+ * <p>
+ * Created by madali on 2020/6/18 10:21
+ */
+@Log4j2
+class RedisNearCache {
+
+    // 失效消息广播频道
+    static final String INVALIDATION_CHANNEL = "RedisUtil:near-cache:invalidate";
+
+    private static final String SEPARATOR = "|";
+    private static final long RESUBSCRIBE_INTERVAL = 1000L;// 单位：毫秒
+
+    // 本实例id，用于忽略自己发出的失效消息（本地已在写入时剔除）
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Cache<String, Object> cache;
+
+    // 失效延迟：发送失效消息到本实例剔除本地缓存的耗时
+    private final LongAdder invalidationCount = new LongAdder();
+    private final LongAdder invalidationLagTotal = new LongAdder();
+    private final LongAccumulator invalidationLagMax = new LongAccumulator(Long::max, 0L);
+
+    private volatile boolean running = true;
+    private volatile JedisPubSub pubSub;
+
+    RedisNearCache(long maximumSize, long expireAfterWrite, TimeUnit timeUnit) {
+        this.cache = Caffeine.newBuilder()
+                // 数量上限
+                .maximumSize(maximumSize)
+                // 过期机制
+                .expireAfterWrite(expireAfterWrite, timeUnit)
+                // 开启命中率统计
+                .recordStats()
+                .build();
+
+        Thread subscriber = new Thread(this::subscribeLoop, "redis-near-cache-invalidator");
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    /**
+     * 本地缓存未命中时通过loader回源redis，loader返回null时不缓存
+     * <p>
+     * 加载期间到达的失效消息会等待加载完成后再剔除，不会留下旧值
+     */
+    Object get(String key, Function<String, Object> loader) {
+        return cache.get(key, loader);
+    }
+
+    /**
+     * 剔除本地缓存并广播失效消息
+     */
+    void invalidate(Jedis jedis, String key) {
+        cache.invalidate(key);
+        jedis.publish(INVALIDATION_CHANNEL, instanceId + SEPARATOR + System.currentTimeMillis() + SEPARATOR + key);
+    }
+
+    void shutdown() {
+        running = false;
+        JedisPubSub current = pubSub;
+        if (current != null && current.isSubscribed()) {
+            current.unsubscribe();
+        }
+        cache.invalidateAll();
+    }
+
+    RedisNearCacheStats stats() {
+        CacheStats cacheStats = cache.stats();
+        long count = invalidationCount.sum();
+        return new RedisNearCacheStats(cache.estimatedSize(), cacheStats.hitCount(), cacheStats.missCount(), cacheStats.hitRate(),
+                cacheStats.evictionCount(), count, count == 0 ? 0D : (double) invalidationLagTotal.sum() / count, invalidationLagMax.get());
+    }
+
+    private void subscribeLoop() {
+        while (running) {
+            Jedis jedis = null;
+            try {
+                jedis = RedisUtil.connect();
+                pubSub = new JedisPubSub() {
+                    @Override
+                    public void onSubscribe(String channel, int subscribedChannels) {
+                        // 订阅完成前已shutdown：shutdown时isSubscribed为false，没有退订，这里退订并释放连接
+                        if (!running) {
+                            unsubscribe();
+                            return;
+                        }
+                        // 断线期间的失效消息无法补发，重新订阅时清空本地缓存
+                        cache.invalidateAll();
+                    }
+
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        onInvalidation(message);
+                    }
+                };
+                jedis.subscribe(pubSub, INVALIDATION_CHANNEL);
+            } catch (Exception e) {
+                log.error("near cache订阅失效消息异常,{}ms后重试.cause:{}", RESUBSCRIBE_INTERVAL, e.getMessage());
+                cache.invalidateAll();
+                sleepQuietly();
+            } finally {
+                RedisUtil.disConnect(jedis);
+            }
+        }
+    }
+
+    private void onInvalidation(String message) {
+        int first = message.indexOf(SEPARATOR);
+        int second = message.indexOf(SEPARATOR, first + 1);
+        if (first < 0 || second < 0) {
+            log.warn("near cache收到非法的失效消息:{}", message);
+            return;
+        }
+
+        if (message.regionMatches(0, instanceId, 0, first) && first == instanceId.length()) {
+            return;
+        }
+
+        cache.invalidate(message.substring(second + 1));
+
+        long lag = Math.max(0L, System.currentTimeMillis() - Long.parseLong(message.substring(first + 1, second)));
+        invalidationCount.increment();
+        invalidationLagTotal.add(lag);
+        invalidationLagMax.accumulate(lag);
+    }
+
+    private static void sleepQuietly() {
+        try {
+            Thread.sleep(RESUBSCRIBE_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.mada.utils.redis;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * near cache运行指标快照
+ * <p>
+ * Created by madali on 2020/6/18 10:21
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class RedisNearCacheStats {
+
+    // 本地缓存当前的key数量（估算值）
+    private final long size;
+
+    private final long hitCount;
+    private final long missCount;
+    // 命中率：hitCount / (hitCount + missCount)
+    private final double hitRate;
+
+    // 因数量上限或过期被淘汰的key数量
+    private final long evictionCount;
+
+    // 收到的其他JVM发出的失效消息数量
+    private final long invalidationCount;
+    // 失效延迟（毫秒）：发送失效消息到本地剔除的耗时，受各机器时钟偏差影响
+    private final double invalidationLagAvg;
+    private final long invalidationLagMax;
+
+}
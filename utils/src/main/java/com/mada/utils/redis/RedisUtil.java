@@ -1,11 +1,15 @@
 package com.mada.utils.redis;
 
+import com.mada.common.redis.InstrumentedJedisPool;
+import com.mada.utils.redis.codec.contract.RedisCodec;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.StringUtils;
 import redis.clients.jedis.*;
 import redis.clients.jedis.params.geo.GeoRadiusParam;
+import redis.clients.util.SafeEncoder;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Redis3.0之后支持地理位置geo功能。geo底层是一个zset（删除可以使用 del location命令删除）
@@ -18,10 +22,15 @@ import java.util.*;
 @Log4j2
 public class RedisUtil {
 
-    private static final JedisPool jedisPool;
+    private static final InstrumentedJedisPool jedisPool;
 
-    //kafka消费key：此处可以动态配置
+    //kafka消费key：此处可以动态配置（旧结构，所有group的消费进度在同一个hash中，仅用于迁移）
     private static final String CONSUMER_PROGRESS_KEY = "OffsetInfo";
+    //kafka消费进度key前缀：offsets:{group}:{topic}
+    private static final String CONSUMER_OFFSET_KEY_PREFIX = "offsets:";
+    //旧结构迁移完成标记key前缀：offsets-migrated:{group}:{topic}，存在时不再读取旧结构
+    private static final String CONSUMER_OFFSET_MIGRATED_KEY_PREFIX = "offsets-migrated:";
+    private static final int CONSUMER_OFFSET_SCAN_COUNT = 500;
 
     // Redis 服务器ip（如果是集群，此处需配置多个） port 密码
     private static final String IP = "127.0.0.1";
@@ -29,7 +38,19 @@ public class RedisUtil {
     private static final String PASSWORD = "";
     private static final int TIMEOUT = 4000;// 单位：毫秒
 
+    // 本地一级缓存，默认关闭，通过enableNearCache开启
+    private static volatile RedisNearCache nearCache;
+    // georadius结果的本地短期缓存，默认关闭，通过enableGeoRadiusCache开启
+    private static volatile RedisGeoRadiusCache geoRadiusCache;
+
     static {
+        jedisPool = new InstrumentedJedisPool(createPoolConfig(), IP, PORT, TIMEOUT, PASSWORD);
+    }
+
+    /**
+     * 连接池配置，分片模式下每个分片的连接池共用该配置
+     */
+    static JedisPoolConfig createPoolConfig() {
         JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
         // 最大总jedis连接
         jedisPoolConfig.setMaxTotal(1000);
@@ -50,20 +71,65 @@ public class RedisUtil {
         // 设置的逐出策略类名, 默认DefaultEvictionPolicy(当连接超过最大空闲时间,或连接数超过最大空闲连接数)
         jedisPoolConfig.setEvictionPolicyClassName("org.apache.commons.pool2.impl.DefaultEvictionPolicy");
 
-        jedisPool = new JedisPool(jedisPoolConfig, IP, PORT, TIMEOUT, PASSWORD);
+        // -Dredis.pool.mode=adaptive时改为后台校验空闲连接，见InstrumentedJedisPool
+        return InstrumentedJedisPool.applyMode(jedisPoolConfig);
     }
 
     public static Jedis connect() {
         return jedisPool.getResource();
     }
 
+    /**
+     * 连接池运行指标：活跃/空闲连接数，借连接等待耗时直方图，各命令耗时直方图
+     */
+    public static Map<String, Object> getPoolMetrics() {
+        return jedisPool.getMetrics();
+    }
+
     public static void disConnect(Jedis jedis) {
         if (Objects.nonNull(jedis)) {
             jedis.close();
         }
     }
 
+    /**
+     * 开启本地一级缓存：getObject优先读本地缓存，setObject/deleteObject通过redis频道通知所有JVM剔除本地缓存
+     *
+     * @param maximumSize      本地缓存key数量上限
+     * @param expireAfterWrite 写入后过期时间，兜底失效消息丢失的情况
+     * @param timeUnit         过期时间单位
+     */
+    public static synchronized void enableNearCache(long maximumSize, long expireAfterWrite, TimeUnit timeUnit) {
+        if (Objects.isNull(nearCache)) {
+            nearCache = new RedisNearCache(maximumSize, expireAfterWrite, timeUnit);
+        }
+    }
+
+    public static synchronized void disableNearCache() {
+        if (Objects.nonNull(nearCache)) {
+            nearCache.shutdown();
+            nearCache = null;
+        }
+    }
+
+    /**
+     * 获取本地一级缓存的命中率及失效延迟指标，未开启时返回null
+     */
+    public static RedisNearCacheStats getNearCacheStats() {
+        RedisNearCache cache = nearCache;
+        return Objects.isNull(cache) ? null : cache.stats();
+    }
+
     public static Object getObject(String key) {
+        RedisNearCache cache = nearCache;
+        if (Objects.nonNull(cache) && StringUtils.isNotEmpty(key)) {
+            return cache.get(key, RedisUtil::loadObject);
+        }
+        return loadObject(key);
+    }
+
+    private static Object loadObject(String key) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
@@ -73,36 +139,103 @@ public class RedisUtil {
         } catch (Exception e) {
             log.error("getObject获取redis键值异常:key=" + key + " cause:" + e.getMessage());
         } finally {
+            jedisPool.recordCommand("get", start);
             disConnect(jedis);
         }
         return null;
     }
 
     public static String setObject(String key, Object value) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
-            return jedis.set(key, String.valueOf(value));
+            String result = jedis.set(key, String.valueOf(value));
+            invalidateNearCache(jedis, key);
+            return result;
         } catch (Exception e) {
             log.error("setObject设置redis键值异常:key=" + key + " value=" + value + " cause:" + e.getMessage());
             return null;
         } finally {
+            jedisPool.recordCommand("set", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 按codec解码读取二进制值（不经过本地一级缓存）
+     *
+     * @param key   redis的key
+     * @param codec 编解码器，需与写入时使用的codec一致
+     * @return key不存在或读取异常时返回null
+     */
+    public static <T> T getObject(String key, RedisCodec<T> codec) {
+        if (StringUtils.isEmpty(key)) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            byte[] bytes = jedis.get(SafeEncoder.encode(key));
+            return Objects.isNull(bytes) ? null : codec.decode(bytes);
+        } catch (Exception e) {
+            log.error("getObject获取redis键值异常:key=" + key + " cause:" + e.getMessage());
+        } finally {
+            jedisPool.recordCommand("get", start);
+            disConnect(jedis);
+        }
+        return null;
+    }
+
+    /**
+     * 按codec编码后写入二进制值
+     *
+     * @param key   redis的key
+     * @param value 值，不能为null
+     * @param codec 编解码器
+     * @return 成功时返回OK，异常时返回null
+     */
+    public static <T> String setObject(String key, T value, RedisCodec<T> codec) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            String result = jedis.set(SafeEncoder.encode(key), codec.encode(value));
+            invalidateNearCache(jedis, key);
+            return result;
+        } catch (Exception e) {
+            log.error("setObject设置redis键值异常:key=" + key + " cause:" + e.getMessage());
+            return null;
+        } finally {
+            jedisPool.recordCommand("set", start);
             disConnect(jedis);
         }
     }
 
     public static void deleteObject(String key) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             jedis.del(key);
+            invalidateNearCache(jedis, key);
         } catch (Exception e) {
             log.error("deleteObject失败,key:{}", key);
         } finally {
+            jedisPool.recordCommand("del", start);
             disConnect(jedis);
         }
     }
 
+    private static void invalidateNearCache(Jedis jedis, String key) {
+        RedisNearCache cache = nearCache;
+        if (Objects.nonNull(cache)) {
+            cache.invalidate(jedis, key);
+        }
+    }
+
     /**
      * 增加地理位置的坐标（对应的redis命令示例：geoadd location 116.999 39.999 test1）
      *
@@ -112,11 +245,13 @@ public class RedisUtil {
      * @return
      */
     public static Long geoAdd(String key, GeoCoordinate coordinate, String memberName) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = connect();
             return jedis.geoadd(key, coordinate.getLongitude(), coordinate.getLatitude(), memberName);
         } finally {
+            jedisPool.recordCommand("geoadd", start);
             disConnect(jedis);
         }
     }
@@ -129,11 +264,13 @@ public class RedisUtil {
      * @return
      */
     public static Long geoAdd(String key, Map<String, GeoCoordinate> memberCoordinateMap) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.geoadd(key, memberCoordinateMap);
         } finally {
+            jedisPool.recordCommand("geoadd", start);
             disConnect(jedis);
         }
     }
@@ -151,11 +288,13 @@ public class RedisUtil {
      * @return List<GeoRadiusResponse>
      */
     public static List<GeoRadiusResponse> geoRadius(String key, GeoCoordinate coordinate, double radius) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.georadius(key, coordinate.getLongitude(), coordinate.getLatitude(), radius, GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withDist().withCoord().sortAscending());
         } finally {
+            jedisPool.recordCommand("georadius", start);
             disConnect(jedis);
         }
     }
@@ -173,11 +312,13 @@ public class RedisUtil {
      * @return List<GeoRadiusResponse>
      */
     public static List<GeoRadiusResponse> geoRadiusByMember(String key, String member, double radius) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.georadiusByMember(key, member, radius, GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withDist().withCoord().sortAscending());
         } finally {
+            jedisPool.recordCommand("georadiusbymember", start);
             disConnect(jedis);
         }
     }
@@ -192,11 +333,13 @@ public class RedisUtil {
      * @return
      */
     public static Double geoDist(String key, String member1, String member2, GeoUnit unit) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.geodist(key, member1, member2, unit);
         } finally {
+            jedisPool.recordCommand("geodist", start);
             disConnect(jedis);
         }
     }
@@ -209,11 +352,13 @@ public class RedisUtil {
      * @return
      */
     public static List<String> geoHash(String key, String... members) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.geohash(key, members);
         } finally {
+            jedisPool.recordCommand("geohash", start);
             disConnect(jedis);
         }
     }
@@ -226,15 +371,242 @@ public class RedisUtil {
      * @return
      */
     public static List<GeoCoordinate> geoPos(String key, String... members) {
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = jedisPool.getResource();
             return jedis.geopos(key, members);
         } finally {
+            jedisPool.recordCommand("geopos", start);
             disConnect(jedis);
         }
     }
 
+    /**
+     * 获取指定范围内的地理位置集合，返回内容由param控制
+     * <p>
+     * 如：GeoRadiusParam.geoRadiusParam().withDist().sortAscending().count(20)，不需要经纬度时不要withCoord，可减小返回数据量
+     *
+     * @param key        redis的key：location
+     * @param coordinate 经纬度对象
+     * @param radius     距离
+     * @param unit       距离单位：km m...
+     * @param param      withDist、withCoord、排序、count等选项
+     * @return List<GeoRadiusResponse>
+     */
+    public static List<GeoRadiusResponse> geoRadius(String key, GeoCoordinate coordinate, double radius, GeoUnit unit, GeoRadiusParam param) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            return jedis.georadius(key, coordinate.getLongitude(), coordinate.getLatitude(), radius, unit, param);
+        } finally {
+            jedisPool.recordCommand("georadius", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 以给定位置元素为中心获取指定范围内的地理位置集合，返回内容由param控制
+     *
+     * @param key    redis的key：location
+     * @param member redis中zset对象的value：test1
+     * @param radius 距离
+     * @param unit   距离单位：km m...
+     * @param param  withDist、withCoord、排序、count等选项
+     * @return List<GeoRadiusResponse>
+     */
+    public static List<GeoRadiusResponse> geoRadiusByMember(String key, String member, double radius, GeoUnit unit, GeoRadiusParam param) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            return jedis.georadiusByMember(key, member, radius, unit, param);
+        } finally {
+            jedisPool.recordCommand("georadiusbymember", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 批量georadius：多个中心点的查询在一次pipeline中完成
+     *
+     * @param key         redis的key：location
+     * @param coordinates 中心点集合
+     * @param radius      距离
+     * @param unit        距离单位：km m...
+     * @param param       withDist、withCoord、排序、count等选项，所有查询共用
+     * @return 与coordinates一一对应的查询结果
+     */
+    public static List<List<GeoRadiusResponse>> geoRadiusBatch(String key, List<GeoCoordinate> coordinates, double radius, GeoUnit unit, GeoRadiusParam param) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<List<GeoRadiusResponse>>> responses = new ArrayList<>(coordinates.size());
+            for (GeoCoordinate coordinate : coordinates) {
+                responses.add(pipeline.georadius(key, coordinate.getLongitude(), coordinate.getLatitude(), radius, unit, param));
+            }
+            pipeline.sync();
+
+            return getAll(responses);
+        } finally {
+            jedisPool.recordCommand("georadius.batch", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 批量georadiusbymember：多个中心元素的查询在一次pipeline中完成
+     *
+     * @param key     redis的key：location
+     * @param members 中心元素集合
+     * @param radius  距离
+     * @param unit    距离单位：km m...
+     * @param param   withDist、withCoord、排序、count等选项，所有查询共用
+     * @return 与members一一对应的查询结果
+     */
+    public static List<List<GeoRadiusResponse>> geoRadiusByMemberBatch(String key, List<String> members, double radius, GeoUnit unit, GeoRadiusParam param) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<List<GeoRadiusResponse>>> responses = new ArrayList<>(members.size());
+            for (String member : members) {
+                responses.add(pipeline.georadiusByMember(key, member, radius, unit, param));
+            }
+            pipeline.sync();
+
+            return getAll(responses);
+        } finally {
+            jedisPool.recordCommand("georadiusbymember.batch", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 批量查询一个位置到多个位置的距离，在一次pipeline中完成
+     *
+     * @param key     redis的key：location
+     * @param member  起点：test1
+     * @param others  终点集合：test2，test3...
+     * @param unit    距离单位：km m...
+     * @return key为终点，value为距离，位置不存在时为null
+     */
+    public static Map<String, Double> geoDistBatch(String key, String member, Collection<String> others, GeoUnit unit) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Double>> responses = new LinkedHashMap<>();
+            for (String other : others) {
+                responses.put(other, pipeline.geodist(key, member, other, unit));
+            }
+            pipeline.sync();
+
+            Map<String, Double> distances = new LinkedHashMap<>();
+            responses.forEach((other, response) -> distances.put(other, response.get()));
+            return distances;
+        } finally {
+            jedisPool.recordCommand("geodist.batch", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 批量获取多个key下地理位置的坐标，在一次pipeline中完成
+     *
+     * @param keyMembers key为redis的key，value为该key下要查询的zset对象的value
+     * @return key为redis的key，value为与members一一对应的坐标，位置不存在时为null
+     */
+    public static Map<String, List<GeoCoordinate>> geoPosBatch(Map<String, List<String>> keyMembers) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<List<GeoCoordinate>>> responses = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> entry : keyMembers.entrySet()) {
+                responses.put(entry.getKey(), pipeline.geopos(entry.getKey(), entry.getValue().toArray(new String[0])));
+            }
+            pipeline.sync();
+
+            Map<String, List<GeoCoordinate>> coordinates = new LinkedHashMap<>();
+            responses.forEach((key, response) -> coordinates.put(key, response.get()));
+            return coordinates;
+        } finally {
+            jedisPool.recordCommand("geopos.batch", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 开启georadius结果的本地短期缓存，见geoRadiusCached
+     *
+     * @param bucketMeters 中心点分桶大小（米），同一个桶内的查询共用一次redis查询
+     * @param ttl          缓存时间，位置更新后最多延迟ttl可见
+     * @param timeUnit     缓存时间单位
+     * @param maximumSize  缓存的桶数量上限
+     */
+    public static synchronized void enableGeoRadiusCache(double bucketMeters, long ttl, TimeUnit timeUnit, long maximumSize) {
+        if (Objects.isNull(geoRadiusCache)) {
+            geoRadiusCache = new RedisGeoRadiusCache(bucketMeters, ttl, timeUnit, maximumSize);
+        }
+    }
+
+    public static synchronized void disableGeoRadiusCache() {
+        if (Objects.nonNull(geoRadiusCache)) {
+            geoRadiusCache.invalidateAll();
+            geoRadiusCache = null;
+        }
+    }
+
+    /**
+     * 带本地短期缓存的georadius：中心点相近（同一个桶内）的查询共用结果
+     * <p>
+     * 返回结果带距离和坐标，从近到远排序。未开启缓存时直接查询redis。
+     *
+     * @param key        redis的key：location
+     * @param coordinate 经纬度对象
+     * @param radius     距离
+     * @param unit       距离单位：km m...
+     * @param count      返回数量上限，小于等于0表示不限制
+     * @return List<GeoRadiusResponse>
+     */
+    public static List<GeoRadiusResponse> geoRadiusCached(String key, GeoCoordinate coordinate, double radius, GeoUnit unit, int count) {
+        RedisGeoRadiusCache cache = geoRadiusCache;
+        if (Objects.isNull(cache)) {
+            GeoRadiusParam param = GeoRadiusParam.geoRadiusParam().withDist().withCoord().sortAscending();
+            return geoRadius(key, coordinate, radius, unit, count > 0 ? param.count(count) : param);
+        }
+
+        // 回源时不能带count，否则扩大范围后的结果不一定包含实际中心点的前count个
+        return cache.get(key, coordinate, radius, unit, count, bucketQuery ->
+                geoRadius(key, bucketQuery.center, bucketQuery.radiusMeters, GeoUnit.M, GeoRadiusParam.geoRadiusParam().withCoord()));
+    }
+
+    private static <T> List<T> getAll(List<Response<T>> responses) {
+        List<T> results = new ArrayList<>(responses.size());
+        for (Response<T> response : responses) {
+            results.add(response.get());
+        }
+        return results;
+    }
+
+    /**
+     * 消费进度按group+topic拆分的hash：field为分区，value为offset
+     */
+    static String consumerOffsetKey(final String groupId, final String topic) {
+        return CONSUMER_OFFSET_KEY_PREFIX + groupId + ":" + topic;
+    }
+
+    private static String consumerOffsetMigratedKey(final String groupId, final String topic) {
+        return CONSUMER_OFFSET_MIGRATED_KEY_PREFIX + groupId + ":" + topic;
+    }
+
     /**
      * 更新kafka消费进度（offset）
      *
@@ -244,17 +616,47 @@ public class RedisUtil {
      * @param offset
      */
     public static void updateConsumerOffset(final String groupId, final String topic, final int partition, final long offset) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            jedis.hset(consumerOffsetKey(groupId, topic), Integer.toString(partition), Long.toString(offset));
+        } finally {
+            jedisPool.recordCommand("hset", start);
+            disConnect(jedis);
+        }
+    }
+
+    /**
+     * 批量更新kafka消费进度（一次HMSET）
+     *
+     * @param groupId
+     * @param topic
+     * @param partitionOffsets key为分区，value为offset
+     */
+    public static void updateConsumerOffsets(final String groupId, final String topic, final Map<Integer, Long> partitionOffsets) {
+        if (partitionOffsets.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> hash = new HashMap<>(Math.max(16, (int) (partitionOffsets.size() / 0.75F) + 1));
+        for (Map.Entry<Integer, Long> entry : partitionOffsets.entrySet()) {
+            hash.put(Integer.toString(entry.getKey()), Long.toString(entry.getValue()));
+        }
+
+        long start = System.nanoTime();
         Jedis jedis = null;
         try {
             jedis = connect();
-            jedis.hset(CONSUMER_PROGRESS_KEY, groupId + "_" + topic + "_" + partition, Long.toString(offset));
+            jedis.hmset(consumerOffsetKey(groupId, topic), hash);
         } finally {
+            jedisPool.recordCommand("hmset", start);
             disConnect(jedis);
         }
     }
 
     /**
-     * 获取kafka消费进度（offset）
+     * 获取kafka消费进度（offset），新结构中没有时读取旧的OffsetInfo结构
      *
      * @param groupId
      * @param topic
@@ -262,23 +664,86 @@ public class RedisUtil {
      */
     public static Long getConsumerOffset(final String groupId, final String topic, final int partition) {
         Long offset = null;
+        long start = System.nanoTime();
         Jedis jedis = null;
 
         try {
             jedis = connect();
-            String offsetStr = jedis.hget(CONSUMER_PROGRESS_KEY, groupId + "_" + topic + "_" + partition);
+            String offsetStr = jedis.hget(consumerOffsetKey(groupId, topic), Integer.toString(partition));
+            if (Objects.isNull(offsetStr)) {
+                offsetStr = jedis.hget(CONSUMER_PROGRESS_KEY, groupId + "_" + topic + "_" + partition);
+            }
             if (Objects.nonNull(offsetStr)) {
                 offset = Long.parseLong(offsetStr);
             }
         } finally {
+            jedisPool.recordCommand("hget", start);
             disConnect(jedis);
         }
 
         return offset;
     }
 
+    /**
+     * 批量获取kafka消费进度（一次HMGET），新结构中没有的分区读取旧的OffsetInfo结构
+     *
+     * @param groupId
+     * @param topic
+     * @param partitions 分区集合
+     * @return key为分区，value为offset，没有消费进度的分区不在结果中
+     */
+    public static Map<Integer, Long> getConsumerOffsets(final String groupId, final String topic, final Collection<Integer> partitions) {
+        Map<Integer, Long> offsets = new HashMap<>();
+        if (partitions.isEmpty()) {
+            return offsets;
+        }
+
+        List<Integer> partitionList = new ArrayList<>(partitions);
+        String[] fields = new String[partitionList.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = Integer.toString(partitionList.get(i));
+        }
+
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            List<String> values = jedis.hmget(consumerOffsetKey(groupId, topic), fields);
+
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < fields.length; i++) {
+                if (Objects.nonNull(values.get(i))) {
+                    offsets.put(partitionList.get(i), Long.parseLong(values.get(i)));
+                } else {
+                    missing.add(partitionList.get(i));
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                String[] legacyFields = new String[missing.size()];
+                for (int i = 0; i < legacyFields.length; i++) {
+                    legacyFields[i] = groupId + "_" + topic + "_" + missing.get(i);
+                }
+                List<String> legacyValues = jedis.hmget(CONSUMER_PROGRESS_KEY, legacyFields);
+                for (int i = 0; i < legacyFields.length; i++) {
+                    if (Objects.nonNull(legacyValues.get(i))) {
+                        offsets.put(missing.get(i), Long.parseLong(legacyValues.get(i)));
+                    }
+                }
+            }
+        } finally {
+            jedisPool.recordCommand("hmget", start);
+            disConnect(jedis);
+        }
+
+        return offsets;
+    }
+
     /**
      * 获取kafka的指定组和topic的所有区
+     * <p>
+     * 只读取该group+topic自己的hash，复杂度为该topic的分区数。迁移完成标记不存在时，先把旧的OffsetInfo结构中的分区合并到新结构并设置标记，
+     * 之后不再扫描旧结构（没有任何消费进度的group+topic也只扫描一次）。
      *
      * @param groupId
      * @param topic
@@ -287,22 +752,97 @@ public class RedisUtil {
     public static List<Integer> getConsumerPartitions(final String groupId, final String topic) {
         List<Integer> partitions = new ArrayList<>();
 
-        String keyPrefix = groupId + "_" + topic + "_";
+        long start = System.nanoTime();
         Jedis jedis = null;
-
         try {
             jedis = connect();
-            Iterator<String> keyIt = jedis.hkeys(CONSUMER_PROGRESS_KEY).iterator();
-            while (keyIt.hasNext()) {
-                String key = keyIt.next();
-                if (key.startsWith(keyPrefix)) {
-                    partitions.add(Integer.parseInt(key.substring(keyPrefix.length())));
-                }
+            Pipeline pipeline = jedis.pipelined();
+            Response<Boolean> migrated = pipeline.exists(consumerOffsetMigratedKey(groupId, topic));
+            Response<Set<String>> hkeys = pipeline.hkeys(consumerOffsetKey(groupId, topic));
+            pipeline.sync();
+
+            Set<String> fields = hkeys.get();
+            if (!migrated.get()) {
+                // 新结构中只有部分分区时，仅存在于旧结构中的分区也要合并进来
+                fields = new HashSet<>(fields);
+                fields.addAll(migrateConsumerOffsets(jedis, groupId, topic).keySet());
+            }
+            for (String field : fields) {
+                partitions.add(Integer.parseInt(field));
             }
         } finally {
+            jedisPool.recordCommand("hkeys", start);
             disConnect(jedis);
         }
 
         return partitions;
     }
+
+    /**
+     * 把旧的OffsetInfo结构中指定group+topic的消费进度迁移到新结构
+     * <p>
+     * 旧结构使用HSCAN分批扫描，不会像HKEYS一样长时间阻塞redis。新结构中已存在的分区不会被覆盖，旧结构中的数据保留，确认迁移完成后可自行删除。
+     * 完成后设置迁移完成标记，getConsumerPartitions不再读取旧结构。
+     *
+     * @param groupId
+     * @param topic
+     * @return 迁移的分区数
+     */
+    public static int migrateConsumerOffsets(final String groupId, final String topic) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = connect();
+            return migrateConsumerOffsets(jedis, groupId, topic).size();
+        } finally {
+            jedisPool.recordCommand("hscan", start);
+            disConnect(jedis);
+        }
+    }
+
+    private static Map<String, String> migrateConsumerOffsets(Jedis jedis, final String groupId, final String topic) {
+        String keyPrefix = groupId + "_" + topic + "_";
+        ScanParams scanParams = new ScanParams().match(escapeGlob(keyPrefix) + "*").count(CONSUMER_OFFSET_SCAN_COUNT);
+
+        Map<String, String> legacyOffsets = new HashMap<>();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<Map.Entry<String, String>> scanResult = jedis.hscan(CONSUMER_PROGRESS_KEY, cursor, scanParams);
+            for (Map.Entry<String, String> entry : scanResult.getResult()) {
+                String partition = entry.getKey().substring(keyPrefix.length());
+                // 前缀相同的其他topic（如topic_a与topic_a_b）的分区部分不是数字，跳过
+                if (StringUtils.isNumeric(partition)) {
+                    legacyOffsets.put(partition, entry.getValue());
+                }
+            }
+            cursor = scanResult.getStringCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        if (!legacyOffsets.isEmpty()) {
+            String offsetKey = consumerOffsetKey(groupId, topic);
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, String> entry : legacyOffsets.entrySet()) {
+                pipeline.hsetnx(offsetKey, entry.getKey(), entry.getValue());
+            }
+            pipeline.sync();
+            log.info("迁移kafka消费进度:groupId={},topic={},分区数={}", groupId, topic, legacyOffsets.size());
+        }
+        jedis.set(consumerOffsetMigratedKey(groupId, topic), "1");
+
+        return legacyOffsets;
+    }
+
+    /**
+     * 转义redis glob匹配中的特殊字符
+     */
+    private static String escapeGlob(String str) {
+        StringBuilder sb = new StringBuilder(str.length() + 8);
+        for (char c : str.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,262 @@
+package com.mada.utils.redis;
+
+import com.mada.common.ketama.ConsistentHashing;
+import com.mada.common.redis.InstrumentedJedisPool;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端分片：按key的一致性hash（ketama）把数据分散到多个redis实例
+ * <p>
+ * 1.每个分片一个连接池，增删分片时只有约1/N的key会换到其他分片。
+ * 2.批量接口先按分片对key分组，每个分片一次pipeline，多个分片之间并行执行。
+ * 3.分片之间没有事务，批量写入时部分分片失败不会回滚其他分片。
+ * <p>
+ * Created by madali on 2020/6/28 16:40
+ */
+@Log4j2
+public class ShardedRedisUtil implements AutoCloseable {
+
+    private static final int TIMEOUT = 4000;// 单位：毫秒
+
+    private final String password;
+    private final Map<String, JedisPool> pools = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    // 增删分片时整体替换，读路径无需加锁
+    private volatile ConsistentHashing<String> ring = new ConsistentHashing<>();
+
+    /**
+     * @param hosts    分片地址列表，格式：ip:port
+     * @param password 密码，没有时传空
+     */
+    public ShardedRedisUtil(Collection<String> hosts, String password) {
+        if (Objects.isNull(hosts) || hosts.isEmpty()) {
+            throw new IllegalArgumentException("redis分片地址为空.");
+        }
+
+        this.password = StringUtils.isEmpty(password) ? null : password;
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "sharded-redis-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (String host : hosts) {
+            addShard(host);
+        }
+    }
+
+    /**
+     * 增加分片，原有分片上约1/N的key会被路由到新分片（数据需自行迁移或等待过期）
+     *
+     * @param host ip:port
+     */
+    public synchronized void addShard(String host) {
+        if (pools.containsKey(host)) {
+            return;
+        }
+
+        String[] hostAndPort = host.split(":");
+        pools.put(host, new InstrumentedJedisPool(RedisUtil.createPoolConfig(), hostAndPort[0], Integer.parseInt(hostAndPort[1]), TIMEOUT, password));
+        rebuildRing();
+        log.info("增加redis分片:{},当前分片数:{}", host, pools.size());
+    }
+
+    /**
+     * 删除分片，该分片上的key会被路由到其他分片
+     *
+     * @param host ip:port
+     */
+    public synchronized void removeShard(String host) {
+        JedisPool pool = pools.remove(host);
+        if (Objects.isNull(pool)) {
+            return;
+        }
+
+        rebuildRing();
+        pool.close();
+        log.info("删除redis分片:{},当前分片数:{}", host, pools.size());
+    }
+
+    private void rebuildRing() {
+        ConsistentHashing<String> newRing = new ConsistentHashing<>();
+        for (String host : pools.keySet()) {
+            newRing.addNode(host);
+        }
+        ring = newRing;
+    }
+
+    /**
+     * 获取key所在分片的地址
+     */
+    public String getShard(String key) {
+        return ring.getNode(key);
+    }
+
+    public String get(String key) {
+        try (Jedis jedis = connect(key)) {
+            return jedis.get(key);
+        }
+    }
+
+    public String set(String key, String value) {
+        try (Jedis jedis = connect(key)) {
+            return jedis.set(key, value);
+        }
+    }
+
+    public Long del(String key) {
+        try (Jedis jedis = connect(key)) {
+            return jedis.del(key);
+        }
+    }
+
+    /**
+     * 批量获取
+     *
+     * @param keys key集合
+     * @return key为传入的key，value为redis中的值，不存在时为null
+     */
+    public Map<String, String> mget(Collection<String> keys) {
+        Map<String, String> resultMap = new HashMap<>(Math.max(16, (int) (keys.size() / 0.75F) + 1));
+
+        Map<String, List<String>> shardKeys = groupByShard(keys);
+        executeOnShards(shardKeys, (pipeline, shardKeyList) -> {
+            List<Response<String>> responses = new ArrayList<>(shardKeyList.size());
+            for (String key : shardKeyList) {
+                responses.add(pipeline.get(key));
+            }
+            pipeline.sync();
+
+            Map<String, String> shardResult = new HashMap<>(Math.max(16, (int) (shardKeyList.size() / 0.75F) + 1));
+            for (int i = 0; i < shardKeyList.size(); i++) {
+                shardResult.put(shardKeyList.get(i), responses.get(i).get());
+            }
+            return shardResult;
+        }).forEach(resultMap::putAll);
+
+        return resultMap;
+    }
+
+    /**
+     * 批量设置
+     *
+     * @param keyValueMap key为redis的key，value为值
+     */
+    public void mset(Map<String, String> keyValueMap) {
+        executeOnShards(groupByShard(keyValueMap.keySet()), (pipeline, shardKeyList) -> {
+            for (String key : shardKeyList) {
+                pipeline.set(key, keyValueMap.get(key));
+            }
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    /**
+     * 批量删除
+     *
+     * @param keys key集合
+     * @return 实际删除的key数量
+     */
+    public long mdel(Collection<String> keys) {
+        long count = 0;
+        for (Long deleted : executeOnShards(groupByShard(keys), (pipeline, shardKeyList) -> {
+            Response<Long> response = pipeline.del(shardKeyList.toArray(new String[0]));
+            pipeline.sync();
+            return response.get();
+        })) {
+            count += deleted;
+        }
+        return count;
+    }
+
+    private Jedis connect(String key) {
+        String host = ring.getNode(key);
+        JedisPool pool = Objects.isNull(host) ? null : pools.get(host);
+        if (Objects.isNull(pool)) {
+            throw new IllegalStateException("key:" + key + "没有可用的redis分片.");
+        }
+        return pool.getResource();
+    }
+
+    private Map<String, List<String>> groupByShard(Collection<String> keys) {
+        ConsistentHashing<String> currentRing = ring;
+        Map<String, List<String>> shardKeys = new HashMap<>();
+        for (String key : keys) {
+            String host = currentRing.getNode(key);
+            if (Objects.isNull(host)) {
+                throw new IllegalStateException("key:" + key + "没有可用的redis分片.");
+            }
+            shardKeys.computeIfAbsent(host, k -> new ArrayList<>()).add(key);
+        }
+        return shardKeys;
+    }
+
+    /**
+     * 每个分片一个pipeline，多个分片并行执行，单个分片时在当前线程执行
+     */
+    private <R> List<R> executeOnShards(Map<String, List<String>> shardKeys, ShardCommand<R> command) {
+        if (shardKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (shardKeys.size() == 1) {
+            Map.Entry<String, List<String>> entry = shardKeys.entrySet().iterator().next();
+            return Collections.singletonList(executeOnShard(entry.getKey(), entry.getValue(), command));
+        }
+
+        List<Future<R>> futures = new ArrayList<>(shardKeys.size());
+        for (Map.Entry<String, List<String>> entry : shardKeys.entrySet()) {
+            futures.add(executor.submit(() -> executeOnShard(entry.getKey(), entry.getValue(), command)));
+        }
+
+        List<R> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    private <R> R executeOnShard(String host, List<String> keys, ShardCommand<R> command) {
+        JedisPool pool = Objects.isNull(host) ? null : pools.get(host);
+        if (Objects.isNull(pool)) {
+            throw new IllegalStateException("redis分片:" + host + "已被删除.");
+        }
+
+        try (Jedis jedis = pool.getResource()) {
+            return command.execute(jedis.pipelined(), keys);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        executor.shutdown();
+        pools.values().forEach(JedisPool::close);
+        pools.clear();
+        ring = new ConsistentHashing<>();
+    }
+
+    @FunctionalInterface
+    private interface ShardCommand<R> {
+        R execute(Pipeline pipeline, List<String> keys);
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.mada.utils.redis.codec.contract;
+
+/**
+ * redis值的编解码器：对象与redis中二进制值的相互转换
+ * <p>
+ * 实现类需线程安全，RedisUtil中的同一个codec实例会被多个线程并发使用
+ * <p>
+ * Created by madali on 2020/6/22 14:05
+ */
+public interface RedisCodec<T> {
+
+    /**
+     * 编码
+     *
+     * @param value 待写入redis的对象，不为null
+     * @return 写入redis的二进制值
+     */
+    byte[] encode(T value);
+
+    /**
+     * 解码
+     *
+     * @param bytes redis中读取到的二进制值，不为null
+     * @return 对象
+     */
+    T decode(byte[] bytes);
+
+}
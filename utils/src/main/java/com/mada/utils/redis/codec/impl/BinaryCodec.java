@@ -0,0 +1,296 @@
+package com.mada.utils.redis.codec.impl;
+
+import com.mada.utils.redis.codec.contract.RedisCodec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 紧凑的无schema二进制序列化
+ * <p>
+ * 1.每个值以1字节类型标记开头，整数和长度使用zigzag变长编码，小数值只占1~2个字节。
+ * 2.支持null、boolean、byte、short、char、int、long、float、double、String、byte[]、Date、BigInteger、BigDecimal，
+ * 以及由这些类型组成的List、Set、Map（可嵌套）。
+ * 3.解码后List为ArrayList，Set为LinkedHashSet，Map为LinkedHashMap。
+ * 4.不支持的类型抛IllegalArgumentException，自定义对象请先转为Map或使用其他codec。
+ * <p>
+ * Created by madali on 2020/6/22 14:05
+ */
+public class BinaryCodec implements RedisCodec<Object> {
+
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte DATE = 12;
+    private static final byte BIG_INTEGER = 13;
+    private static final byte BIG_DECIMAL = 14;
+    private static final byte LIST = 15;
+    private static final byte SET = 16;
+    private static final byte MAP = 17;
+
+    @Override
+    public byte[] encode(Object value) {
+        Writer writer = new Writer();
+        write(writer, value);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        Object value = read(reader);
+        if (reader.position != bytes.length) {
+            throw new IllegalArgumentException("BinaryCodec解码失败,数据末尾有多余的字节:" + (bytes.length - reader.position));
+        }
+        return value;
+    }
+
+    private static void write(Writer writer, Object value) {
+        if (value == null) {
+            writer.writeByte(NULL);
+        } else if (value instanceof String) {
+            writer.writeByte(STRING);
+            writer.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Integer) {
+            writer.writeByte(INT);
+            writer.writeVarLong((Integer) value);
+        } else if (value instanceof Long) {
+            writer.writeByte(LONG);
+            writer.writeVarLong((Long) value);
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writer.writeByte(DOUBLE);
+            writer.writeFixedLong(Double.doubleToLongBits((Double) value), 8);
+        } else if (value instanceof Float) {
+            writer.writeByte(FLOAT);
+            writer.writeFixedLong(Float.floatToIntBits((Float) value), 4);
+        } else if (value instanceof Short) {
+            writer.writeByte(SHORT);
+            writer.writeVarLong((Short) value);
+        } else if (value instanceof Byte) {
+            writer.writeByte(BYTE);
+            writer.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            writer.writeByte(CHAR);
+            writer.writeVarLong((Character) value);
+        } else if (value instanceof byte[]) {
+            writer.writeByte(BYTES);
+            writer.writeBytes((byte[]) value);
+        } else if (value instanceof Date) {
+            writer.writeByte(DATE);
+            writer.writeVarLong(((Date) value).getTime());
+        } else if (value instanceof BigInteger) {
+            writer.writeByte(BIG_INTEGER);
+            writer.writeBytes(((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            writer.writeByte(BIG_DECIMAL);
+            writer.writeVarLong(decimal.scale());
+            writer.writeBytes(decimal.unscaledValue().toByteArray());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writer.writeByte(MAP);
+            writer.writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(writer, entry.getKey());
+                write(writer, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writer.writeByte(value instanceof Set ? SET : LIST);
+            writer.writeVarLong(collection.size());
+            for (Object element : collection) {
+                write(writer, element);
+            }
+        } else {
+            throw new IllegalArgumentException("BinaryCodec不支持的类型:" + value.getClass().getName());
+        }
+    }
+
+    private static Object read(Reader reader) {
+        byte type = reader.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return reader.readByte();
+            case SHORT:
+                return (short) reader.readVarLong();
+            case CHAR:
+                return (char) reader.readVarLong();
+            case INT:
+                return (int) reader.readVarLong();
+            case LONG:
+                return reader.readVarLong();
+            case FLOAT:
+                return Float.intBitsToFloat((int) reader.readFixedLong(4));
+            case DOUBLE:
+                return Double.longBitsToDouble(reader.readFixedLong(8));
+            case STRING:
+                return new String(reader.readBytes(), StandardCharsets.UTF_8);
+            case BYTES:
+                return reader.readBytes();
+            case DATE:
+                return new Date(reader.readVarLong());
+            case BIG_INTEGER:
+                return new BigInteger(reader.readBytes());
+            case BIG_DECIMAL:
+                int scale = (int) reader.readVarLong();
+                return new BigDecimal(new BigInteger(reader.readBytes()), scale);
+            case LIST: {
+                int size = reader.readSize();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(reader));
+                }
+                return list;
+            }
+            case SET: {
+                int size = reader.readSize();
+                Set<Object> set = new LinkedHashSet<>(Math.max(16, (int) (size / 0.75F) + 1));
+                for (int i = 0; i < size; i++) {
+                    set.add(read(reader));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = reader.readSize();
+                Map<Object, Object> map = new LinkedHashMap<>(Math.max(16, (int) (size / 0.75F) + 1));
+                for (int i = 0; i < size; i++) {
+                    map.put(read(reader), read(reader));
+                }
+                return map;
+            }
+            default:
+                throw new IllegalArgumentException("BinaryCodec解码失败,未知的类型标记:" + type);
+        }
+    }
+
+    /**
+     * 非线程安全的可扩容字节缓冲，每次encode单独创建
+     */
+    private static final class Writer {
+
+        private byte[] buffer = new byte[64];
+        private int position;
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) b;
+        }
+
+        /**
+         * zigzag变长编码：绝对值越小占用字节越少，-64~63只占1个字节
+         */
+        void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            ensureCapacity(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[position++] = (byte) zigzag;
+        }
+
+        void writeFixedLong(long value, int length) {
+            ensureCapacity(length);
+            for (int i = length - 1; i >= 0; i--) {
+                buffer[position++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + length));
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            checkRemaining(1);
+            return buffer[position++];
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IllegalArgumentException("BinaryCodec解码失败,变长整数超过10个字节");
+        }
+
+        long readFixedLong(int length) {
+            checkRemaining(length);
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = readSize();
+            checkRemaining(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        int readSize() {
+            long size = readVarLong();
+            if (size < 0 || size > buffer.length - position) {
+                throw new IllegalArgumentException("BinaryCodec解码失败,非法的长度:" + size);
+            }
+            return (int) size;
+        }
+
+        private void checkRemaining(int length) {
+            if (buffer.length - position < length) {
+                throw new IllegalArgumentException("BinaryCodec解码失败,数据被截断");
+            }
+        }
+    }
+
+}
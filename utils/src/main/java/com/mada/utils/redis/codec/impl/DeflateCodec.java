@@ -0,0 +1,127 @@
+package com.mada.utils.redis.codec.impl;
+
+import com.mada.utils.redis.codec.contract.RedisCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩包装：被包装codec的编码结果超过阈值时使用Deflate压缩
+ * <p>
+ * 1.编码结果首字节为压缩标记（0未压缩，1已压缩），其后为原始数据或压缩数据。
+ * 2.压缩后没有变小时按未压缩存储，避免小值或已压缩数据（图片等）反而变大。
+ * 3.Deflater/Inflater按线程复用，不在每次调用时重新分配本地内存。
+ * <p>
+ * Created by madali on 2020/6/22 14:05
+ */
+public class DeflateCodec<T> implements RedisCodec<T> {
+
+    // 默认压缩阈值：1KB以下的值压缩收益很小
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte COMPRESSED = 1;
+    private static final int BUFFER = 1024;
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final RedisCodec<T> delegate;
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflater;
+
+    public DeflateCodec(RedisCodec<T> delegate) {
+        this(delegate, DEFAULT_THRESHOLD, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param delegate  被包装的codec
+     * @param threshold 压缩阈值，编码结果的字节数超过该值时才压缩
+     * @param level     压缩级别：Deflater.BEST_SPEED ~ Deflater.BEST_COMPRESSION
+     */
+    public DeflateCodec(RedisCodec<T> delegate, int threshold, int level) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        byte[] raw = delegate.encode(value);
+        if (raw.length > threshold) {
+            byte[] compressed = compress(raw);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+
+        byte[] result = new byte[raw.length + 1];
+        result[0] = UNCOMPRESSED;
+        System.arraycopy(raw, 0, result, 1, raw.length);
+        return result;
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("DeflateCodec解码失败,缺少压缩标记");
+        }
+
+        switch (bytes[0]) {
+            case UNCOMPRESSED:
+                return delegate.decode(Arrays.copyOfRange(bytes, 1, bytes.length));
+            case COMPRESSED:
+                return delegate.decode(decompress(bytes));
+            default:
+                throw new IllegalArgumentException("DeflateCodec解码失败,未知的压缩标记:" + bytes[0]);
+        }
+    }
+
+    /**
+     * @return 带压缩标记的压缩结果，压缩后不小于原始数据时返回null
+     */
+    private byte[] compress(byte[] raw) {
+        Deflater def = deflater.get();
+        try {
+            def.setInput(raw);
+            def.finish();
+
+            // 输出上限为原始长度，超出即放弃压缩
+            byte[] output = new byte[raw.length + 1];
+            output[0] = COMPRESSED;
+            int length = 1;
+            while (!def.finished() && length < output.length) {
+                length += def.deflate(output, length, output.length - length);
+            }
+
+            return def.finished() && length < output.length ? Arrays.copyOf(output, length) : null;
+        } finally {
+            def.reset();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes) {
+        Inflater inf = INFLATER.get();
+        try {
+            inf.setInput(bytes, 1, bytes.length - 1);
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[BUFFER];
+            while (!inf.finished()) {
+                int count = inf.inflate(buffer);
+                if (count == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    throw new IllegalArgumentException("DeflateCodec解码失败,压缩数据被截断");
+                }
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("DeflateCodec解码失败,压缩数据格式错误", e);
+        } finally {
+            inf.reset();
+        }
+    }
+
+}
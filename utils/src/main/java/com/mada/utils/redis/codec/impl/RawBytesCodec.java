@@ -0,0 +1,24 @@
+package com.mada.utils.redis.codec.impl;
+
+import com.mada.utils.redis.codec.contract.RedisCodec;
+
+/**
+ * 原样读写二进制值，不做任何转换
+ * <p>
+ * Created by madali on 2020/6/22 14:05
+ */
+public class RawBytesCodec implements RedisCodec<byte[]> {
+
+    public static final RawBytesCodec INSTANCE = new RawBytesCodec();
+
+    @Override
+    public byte[] encode(byte[] value) {
+        return value;
+    }
+
+    @Override
+    public byte[] decode(byte[] bytes) {
+        return bytes;
+    }
+
+}
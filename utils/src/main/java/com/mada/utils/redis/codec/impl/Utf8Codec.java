@@ -0,0 +1,26 @@
+package com.mada.utils.redis.codec.impl;
+
+import com.mada.utils.redis.codec.contract.RedisCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 字符串按UTF-8编解码，与jedis的String类命令读写的值互通
+ * <p>
+ * Created by madali on 2020/6/22 14:05
+ */
+public class Utf8Codec implements RedisCodec<String> {
+
+    public static final Utf8Codec INSTANCE = new Utf8Codec();
+
+    @Override
+    public byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String decode(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -1,13 +1,13 @@
 package com.mada.zookeeper.listener;
 
 import com.alibaba.fastjson.JSONObject;
+import com.mada.common.ketama.ConsistentHashing;
 import com.mada.zookeeper.callback.IZkConnectionListenerCallback;
 import com.mada.zookeeper.entity.ZkConnectionNodeEntity;
 import com.mada.zookeeper.enumeration.ServerStateEnum;
 import com.mada.zookeeper.enumeration.ServiceEnum;
 import com.mada.zookeeper.utils.balance.RoundRobin;
 import com.mada.zookeeper.utils.enumeration.EnumerationUtil;
-import com.mada.zookeeper.utils.ketama.ConsistentHashing;
 import com.mada.zookeeper.utils.zk.ZkUtil;
 import lombok.extern.log4j.Log4j2;
 